@@ -0,0 +1,471 @@
+package com.rcpooley.effstorage.processor;
+
+import com.rcpooley.effstorage.core.Efficient;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+@SupportedAnnotationTypes("com.rcpooley.effstorage.core.Efficient")
+public class EfficientProcessor extends AbstractProcessor {
+
+    // Must match the names EfficientStorage looks up at runtime
+    static final String GENERATED_SUFFIX = "$$EfficientSerializer";
+
+    static final String GENERATED_ARRAY_SUFFIX = "$$EfficientArraySerializer";
+
+    private static final Set<String> DELTA_TYPES = new HashSet<>(Arrays.asList(
+            "int", "long", "double", "java.lang.Integer", "java.lang.Long", "java.lang.Double", "java.math.BigDecimal"
+    ));
+
+    // Only have a delta value when XOR encoded
+    private static final Set<String> XOR_DELTA_TYPES = new HashSet<>(Arrays.asList("float", "java.lang.Float"));
+
+    private static class FieldInfo {
+        VariableElement element;
+        String name;
+        String type;
+        TypeKind kind;
+        boolean direct;
+        boolean varint;
+        String deltaEncoding;
+        int blockSize;
+        int index;
+
+        FieldInfo(VariableElement element, TypeMirror erasure, int index) {
+            this.element = element;
+            this.index = index;
+            this.name = element.getSimpleName().toString();
+            this.kind = element.asType().getKind();
+            this.type = erasure.toString();
+            Set<Modifier> mods = element.getModifiers();
+            this.direct = !mods.contains(Modifier.PRIVATE) && !mods.contains(Modifier.FINAL);
+            Efficient eff = element.getAnnotation(Efficient.class);
+            this.varint = eff.varint();
+            this.deltaEncoding = eff.deltaEncoding().name();
+            this.blockSize = eff.blockSize();
+        }
+
+        // Prefixed with the field's position, since names may differ only in case
+        String constant() {
+            return "F" + index + "_" + name;
+        }
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getElementsAnnotatedWith(Efficient.class)) {
+            if (element.getKind() != ElementKind.CLASS) continue;
+            TypeElement type = (TypeElement) element;
+            if (!canGenerate(type)) continue;
+
+            List<FieldInfo> fields = new ArrayList<>();
+            List<FieldInfo> deltaFields = new ArrayList<>();
+            List<VariableElement> declared = new ArrayList<>(ElementFilter.fieldsIn(type.getEnclosedElements()));
+            declared.sort(Comparator.comparing(f -> f.getSimpleName().toString()));
+            for (VariableElement field : declared) {
+                Efficient eff = field.getAnnotation(Efficient.class);
+                if (eff == null) continue;
+                FieldInfo info = new FieldInfo(field, processingEnv.getTypeUtils().erasure(field.asType()), fields.size() + deltaFields.size());
+                if (eff.storeByDelta()) {
+                    deltaFields.add(info);
+                } else {
+                    fields.add(info);
+                }
+            }
+
+            try {
+                // Boxed varint fields are left to the runtime
+                if (fields.stream().noneMatch(f -> f.varint && varintWrite(f.kind) == null)) {
+                    writeSerializer(type, fields);
+                }
+                // Columnar arrays are laid out by the runtime
+                if (!deltaFields.isEmpty() && deltaFields.stream().allMatch(EfficientProcessor::hasDeltaValue) && !type.getAnnotation(Efficient.class).columnar()) {
+                    writeArraySerializer(type, deltaFields);
+                }
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to write serializer: " + e.getMessage(), type);
+            }
+        }
+        // @Efficient is ours alone; claiming it keeps -Xlint:processing quiet
+        return true;
+    }
+
+    // Classes the generated code cannot instantiate fall back to the reflective path at runtime
+    private boolean canGenerate(TypeElement type) {
+        if (type.getModifiers().contains(Modifier.PRIVATE) || type.getModifiers().contains(Modifier.ABSTRACT)) return false;
+        if (type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC)) return false;
+        if (type.getNestingKind() == NestingKind.LOCAL || type.getNestingKind() == NestingKind.ANONYMOUS) return false;
+        if (!type.getTypeParameters().isEmpty()) return false;
+
+        TypeElement serializable = processingEnv.getElementUtils().getTypeElement("com.rcpooley.effstorage.core.EfficientSerializable");
+        if (processingEnv.getTypeUtils().isAssignable(type.asType(), serializable.asType())) return false;
+
+        for (ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (c.getParameters().isEmpty()) return true;
+        }
+        return false;
+    }
+
+    private static boolean hasDeltaValue(FieldInfo f) {
+        return DELTA_TYPES.contains(f.type) || ("XOR".equals(f.deltaEncoding) && XOR_DELTA_TYPES.contains(f.type));
+    }
+
+    private static boolean hasPrivateConstructor(TypeElement type) {
+        for (ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (c.getParameters().isEmpty()) return c.getModifiers().contains(Modifier.PRIVATE);
+        }
+        return false;
+    }
+
+    private String packageOf(TypeElement type) {
+        return processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+    }
+
+    private String generatedName(TypeElement type, String suffix) {
+        String binary = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String pkg = packageOf(type);
+        return (pkg.isEmpty() ? binary : binary.substring(pkg.length() + 1)) + suffix;
+    }
+
+    private void writeSerializer(TypeElement type, List<FieldInfo> fields) throws IOException {
+        String pkg = packageOf(type);
+        String name = generatedName(type, GENERATED_SUFFIX);
+        String t = type.getQualifiedName().toString();
+
+        StringBuilder sb = new StringBuilder();
+        header(sb, pkg);
+        sb.append("@SuppressWarnings({\"rawtypes\", \"unchecked\"})\n");
+        sb.append("public final class ").append(name).append(" implements EfficientSerializer<").append(t).append("> {\n");
+
+        for (FieldInfo f : fields) {
+            if (!f.kind.isPrimitive()) {
+                sb.append("\n    private static final EfficientSerializer<").append(f.type).append("> SER_").append(f.constant())
+                        .append(" = EfficientStorage.getSerializer(").append(f.type).append(".class);\n");
+            }
+        }
+        handles(sb, t, fields, hasPrivateConstructor(type));
+
+        sb.append("\n    @Override\n");
+        sb.append("    public void serialize(").append(t).append(" obj, DataOutputStream dos) throws IOException {\n");
+        for (FieldInfo f : fields) {
+            String value = get(f, "obj");
+            if (f.varint) {
+                sb.append("        VarInt.").append(varintWrite(f.kind)).append("(dos, ").append(value).append(");\n");
+            } else if (f.kind.isPrimitive()) {
+                sb.append("        dos.").append(primitiveWrite(f.kind)).append("(").append(value).append(");\n");
+            } else {
+                sb.append("        SER_").append(f.constant()).append(".serialize(").append(value).append(", dos);\n");
+            }
+        }
+        sb.append("    }\n");
+
+        sb.append("\n    @Override\n");
+        sb.append("    public ").append(t).append(" deserialize(DataInputStream dis) throws IOException {\n");
+        sb.append("        ").append(t).append(" obj = ").append(newInstance(type, t)).append(";\n");
+        for (FieldInfo f : fields) {
+            String value;
+            if (f.varint) {
+                value = varintRead(f.kind);
+            } else if (f.kind.isPrimitive()) {
+                value = "dis." + primitiveRead(f.kind) + "()";
+            } else {
+                value = "SER_" + f.constant() + ".deserialize(dis)";
+            }
+            sb.append("        ").append(set(f, "obj", value)).append(";\n");
+        }
+        sb.append("        return obj;\n");
+        sb.append("    }\n");
+
+        accessors(sb, t, fields, hasPrivateConstructor(type));
+        sb.append("}\n");
+
+        write(type, pkg, name, sb);
+    }
+
+    private void writeArraySerializer(TypeElement type, List<FieldInfo> deltaFields) throws IOException {
+        String pkg = packageOf(type);
+        String name = generatedName(type, GENERATED_ARRAY_SUFFIX);
+        String t = type.getQualifiedName().toString();
+
+        StringBuilder sb = new StringBuilder();
+        header(sb, pkg);
+        sb.append("@SuppressWarnings({\"rawtypes\", \"unchecked\"})\n");
+        sb.append("public final class ").append(name).append(" implements EfficientSerializer<").append(t).append("[]> {\n");
+        sb.append("\n    private static final EfficientSerializer<").append(t).append("> ELEMENT = EfficientStorage.getSerializer(")
+                .append(t).append(".class);\n");
+        for (FieldInfo f : deltaFields) {
+            sb.append("\n    private static final EfficientDeltaValue DELTA_").append(f.constant())
+                    .append(" = EfficientStorage.getDeltaValue(").append(f.type).append(".class, DeltaEncoding.")
+                    .append(f.deltaEncoding).append(");\n");
+        }
+        handles(sb, t, deltaFields, false);
+
+        sb.append("\n    @Override\n");
+        sb.append("    public void serialize(").append(t).append("[] arr, DataOutputStream dos) throws IOException {\n");
+        sb.append("        GeneratedSupport.writeLength(dos, arr.length);\n");
+        sb.append("        if (arr.length == 0) return;\n\n");
+        sb.append("        for (").append(t).append(" e : arr) {\n");
+        sb.append("            ELEMENT.serialize(e, dos);\n");
+        sb.append("        }\n\n");
+        sb.append("        BitWriter bw = new BitWriter(dos);\n");
+        if (deltaFields.stream().anyMatch(f -> rawBits(f) != null)) {
+            sb.append("        long[] vals;\n");
+        }
+        if (deltaFields.stream().anyMatch(f -> rawBits(f) == null)) {
+            sb.append("        Object[] raw = new Object[arr.length];\n");
+        }
+        for (FieldInfo f : deltaFields) {
+            String values;
+            String[] bits = rawBits(f);
+            if (bits != null) {
+                // Straight into the long array the built-in delta value would produce, without boxing
+                sb.append("        vals = new long[arr.length];\n");
+                sb.append("        for (int i = 0; i < arr.length; i++) vals[i] = ").append(String.format(bits[0], get(f, "arr[i]"))).append(";\n");
+                values = "new EfficientDeltaValue.Values(vals)";
+            } else {
+                sb.append("        for (int i = 0; i < arr.length; i++) raw[i] = ").append(get(f, "arr[i]")).append(";\n");
+                values = "DELTA_" + f.constant() + ".getValues(raw)";
+            }
+            sb.append("        DeltaColumn.write(bw, DELTA_").append(f.constant()).append(", DeltaEncoding.").append(f.deltaEncoding).append(", ").append(f.blockSize).append(", ").append(values).append(");\n");
+        }
+        sb.append("        bw.finish();\n");
+        sb.append("    }\n");
+
+        sb.append("\n    @Override\n");
+        sb.append("    public ").append(t).append("[] deserialize(DataInputStream dis) throws IOException {\n");
+        sb.append("        int len = GeneratedSupport.readLength(dis);\n");
+        sb.append("        ").append(t).append("[] arr = new ").append(t).append("[len];\n");
+        sb.append("        if (len == 0) return arr;\n\n");
+        sb.append("        for (int i = 0; i < len; i++) {\n");
+        sb.append("            arr[i] = ELEMENT.deserialize(dis);\n");
+        sb.append("        }\n\n");
+        sb.append("        BitReader br = GeneratedSupport.newBitReader(dis);\n");
+        if (deltaFields.stream().anyMatch(f -> rawBits(f) != null)) {
+            sb.append("        long[] vals;\n");
+        }
+        if (deltaFields.stream().anyMatch(f -> rawBits(f) == null)) {
+            sb.append("        Object[] raw;\n");
+        }
+        for (FieldInfo f : deltaFields) {
+            String column = "DeltaColumn.read(br, DELTA_" + f.constant() + ", DeltaEncoding." + f.deltaEncoding + ", " + f.blockSize + ", len)";
+            String[] bits = rawBits(f);
+            if (bits != null) {
+                sb.append("        vals = ").append(column).append(".values;\n");
+                sb.append("        for (int i = 0; i < len; i++) ").append(set(f, "arr[i]", String.format(bits[1], "vals[i]"))).append(";\n");
+            } else {
+                sb.append("        raw = DELTA_").append(f.constant()).append(".convertValues(").append(column).append(");\n");
+                sb.append("        for (int i = 0; i < len; i++) ").append(set(f, "arr[i]", "(" + boxed(f.type) + ") raw[i]")).append(";\n");
+            }
+        }
+        sb.append("        return arr;\n");
+        sb.append("    }\n");
+
+        accessors(sb, t, deltaFields, false);
+        sb.append("}\n");
+
+        write(type, pkg, name, sb);
+    }
+
+    private static void header(StringBuilder sb, String pkg) {
+        if (!pkg.isEmpty()) sb.append("package ").append(pkg).append(";\n\n");
+        sb.append("import com.rcpooley.effstorage.bitio.BitReader;\n");
+        sb.append("import com.rcpooley.effstorage.bitio.BitWriter;\n");
+        sb.append("import com.rcpooley.effstorage.bitio.VarInt;\n");
+        sb.append("import com.rcpooley.effstorage.core.DeltaColumn;\n");
+        sb.append("import com.rcpooley.effstorage.core.DeltaEncoding;\n");
+        sb.append("import com.rcpooley.effstorage.core.EfficientDeltaValue;\n");
+        sb.append("import com.rcpooley.effstorage.core.EfficientSerializer;\n");
+        sb.append("import com.rcpooley.effstorage.core.EfficientStorage;\n");
+        sb.append("import com.rcpooley.effstorage.core.GeneratedSupport;\n\n");
+        sb.append("import java.io.DataInputStream;\n");
+        sb.append("import java.io.DataOutputStream;\n");
+        sb.append("import java.io.IOException;\n");
+        sb.append("import java.lang.invoke.MethodHandle;\n\n");
+        sb.append("// Generated by EfficientProcessor. Do not edit.\n");
+    }
+
+    // Private and final members are reached through method handles resolved once at class initialization
+    private static void handles(StringBuilder sb, String t, List<FieldInfo> fields, boolean privateConstructor) {
+        for (FieldInfo f : fields) {
+            if (f.direct) continue;
+            sb.append("\n    private static final MethodHandle GET_").append(f.constant())
+                    .append(" = GeneratedSupport.getter(").append(t).append(".class, \"").append(f.name).append("\");\n");
+            sb.append("\n    private static final MethodHandle SET_").append(f.constant())
+                    .append(" = GeneratedSupport.setter(").append(t).append(".class, \"").append(f.name).append("\");\n");
+        }
+        if (privateConstructor) {
+            sb.append("\n    private static final MethodHandle NEW = GeneratedSupport.constructor(").append(t).append(".class);\n");
+        }
+    }
+
+    private static void accessors(StringBuilder sb, String t, List<FieldInfo> fields, boolean privateConstructor) {
+        for (FieldInfo f : fields) {
+            if (f.direct) continue;
+            sb.append("\n    private static ").append(f.type).append(" get_").append(f.name).append("(").append(t).append(" obj) {\n");
+            sb.append("        try {\n");
+            sb.append("            return (").append(f.type).append(") GET_").append(f.constant()).append(".invokeExact(obj);\n");
+            sb.append("        } catch (Throwable t) {\n");
+            sb.append("            throw GeneratedSupport.propagate(t);\n");
+            sb.append("        }\n");
+            sb.append("    }\n");
+            sb.append("\n    private static void set_").append(f.name).append("(").append(t).append(" obj, ").append(f.type).append(" value) {\n");
+            sb.append("        try {\n");
+            sb.append("            SET_").append(f.constant()).append(".invokeExact(obj, value);\n");
+            sb.append("        } catch (Throwable t) {\n");
+            sb.append("            throw GeneratedSupport.propagate(t);\n");
+            sb.append("        }\n");
+            sb.append("    }\n");
+        }
+        if (privateConstructor) {
+            sb.append("\n    private static ").append(t).append(" newInstance() {\n");
+            sb.append("        try {\n");
+            sb.append("            return (").append(t).append(") NEW.invokeExact();\n");
+            sb.append("        } catch (Throwable t) {\n");
+            sb.append("            throw GeneratedSupport.propagate(t);\n");
+            sb.append("        }\n");
+            sb.append("    }\n");
+        }
+    }
+
+    private static String get(FieldInfo f, String target) {
+        return f.direct ? target + "." + f.name : "get_" + f.name + "(" + target + ")";
+    }
+
+    private static String set(FieldInfo f, String target, String value) {
+        return f.direct ? target + "." + f.name + " = " + value : "set_" + f.name + "(" + target + ", " + value + ")";
+    }
+
+    private static String newInstance(TypeElement type, String t) {
+        return hasPrivateConstructor(type) ? "newInstance()" : "new " + t + "()";
+    }
+
+    // How the built-in delta values turn a primitive field into its long and back, matching the runtime's fast path,
+    // or null for fields that go through the delta value boxed
+    private static String[] rawBits(FieldInfo f) {
+        boolean xor = "XOR".equals(f.deltaEncoding);
+        switch (f.kind) {
+            case INT:
+                return new String[]{"%s", "(int) %s"};
+            case LONG:
+                return new String[]{"%s", "%s"};
+            case DOUBLE:
+                return xor ? new String[]{"Double.doubleToRawLongBits(%s)", "Double.longBitsToDouble(%s)"} : null;
+            case FLOAT:
+                return xor ? new String[]{"(Float.floatToRawIntBits(%s) & 0xFFFFFFFFL)", "Float.intBitsToFloat((int) %s)"} : null;
+            default:
+                return null;
+        }
+    }
+
+    private static String boxed(String type) {
+        switch (type) {
+            case "int":
+                return "Integer";
+            case "long":
+                return "Long";
+            case "double":
+                return "Double";
+            case "float":
+                return "Float";
+            default:
+                return type;
+        }
+    }
+
+    private static String varintWrite(TypeKind kind) {
+        switch (kind) {
+            case SHORT:
+            case INT:
+                return "writeSignedInt";
+            case CHAR:
+                return "writeUnsignedInt";
+            case LONG:
+                return "writeSignedLong";
+            default:
+                return null;
+        }
+    }
+
+    private static String varintRead(TypeKind kind) {
+        switch (kind) {
+            case SHORT:
+                return "(short) VarInt.readSignedInt(dis)";
+            case CHAR:
+                return "(char) VarInt.readUnsignedInt(dis)";
+            case INT:
+                return "VarInt.readSignedInt(dis)";
+            case LONG:
+                return "VarInt.readSignedLong(dis)";
+            default:
+                throw new IllegalArgumentException("Not a varint kind: " + kind);
+        }
+    }
+
+    private static String primitiveWrite(TypeKind kind) {
+        switch (kind) {
+            case BOOLEAN:
+                return "writeBoolean";
+            case BYTE:
+                return "writeByte";
+            case SHORT:
+                return "writeShort";
+            case CHAR:
+                return "writeChar";
+            case INT:
+                return "writeInt";
+            case LONG:
+                return "writeLong";
+            case FLOAT:
+                return "writeFloat";
+            case DOUBLE:
+                return "writeDouble";
+            default:
+                throw new IllegalArgumentException("Not a primitive kind: " + kind);
+        }
+    }
+
+    private static String primitiveRead(TypeKind kind) {
+        switch (kind) {
+            case BOOLEAN:
+                return "readBoolean";
+            case BYTE:
+                return "readByte";
+            case SHORT:
+                return "readShort";
+            case CHAR:
+                return "readChar";
+            case INT:
+                return "readInt";
+            case LONG:
+                return "readLong";
+            case FLOAT:
+                return "readFloat";
+            case DOUBLE:
+                return "readDouble";
+            default:
+                throw new IllegalArgumentException("Not a primitive kind: " + kind);
+        }
+    }
+
+    private void write(TypeElement type, String pkg, String name, StringBuilder sb) throws IOException {
+        String qualified = pkg.isEmpty() ? name : pkg + "." + name;
+        try (Writer w = processingEnv.getFiler().createSourceFile(qualified, type).openWriter()) {
+            w.write(sb.toString());
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.rcpooley.effstorage.processor.test;
+
+import com.rcpooley.effstorage.core.Efficient;
+import com.rcpooley.effstorage.core.EfficientException;
+import com.rcpooley.effstorage.core.EfficientOptions;
+import com.rcpooley.effstorage.core.EfficientStorage;
+import com.rcpooley.effstorage.processor.EfficientProcessor;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.tools.*;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class TestEfficientProcessor {
+
+    private static final String TICK = "package gen;\n" +
+            "import com.rcpooley.effstorage.core.DeltaEncoding;\n" +
+            "import com.rcpooley.effstorage.core.Efficient;\n" +
+            "@Efficient\n" +
+            "public class Tick {\n" +
+            "    @Efficient private String sym;\n" +
+            "    @Efficient int qty;\n" +
+            "    @Efficient public boolean buy;\n" +
+            "    @Efficient public char side;\n" +
+            "    @Efficient public int[] levels;\n" +
+            "    @Efficient(storeByDelta = true, deltaEncoding = DeltaEncoding.DELTA_OF_DELTA) private long ts;\n" +
+            "    @Efficient(storeByDelta = true, deltaEncoding = DeltaEncoding.XOR, blockSize = 3) public double price;\n" +
+            "    @Efficient(varint = true) public int seq;\n" +
+            "    @Efficient(varint = true) private long gap;\n" +
+            "    private Tick() {}\n" +
+            "    public Tick(String sym, int qty, boolean buy, char side, int[] levels, long ts, double price, int seq, long gap) {\n" +
+            "        this.sym = sym; this.qty = qty; this.buy = buy; this.side = side;\n" +
+            "        this.levels = levels; this.ts = ts; this.price = price; this.seq = seq; this.gap = gap;\n" +
+            "    }\n" +
+            "}\n";
+
+    // Fields whose names differ only in case
+    private static final String QUOTE = "package gen;\n" +
+            "import com.rcpooley.effstorage.core.DeltaEncoding;\n" +
+            "import com.rcpooley.effstorage.core.Efficient;\n" +
+            "@Efficient\n" +
+            "public class Quote {\n" +
+            "    @Efficient(storeByDelta = true, blockSize = 2) public long price;\n" +
+            "    @Efficient(storeByDelta = true, deltaEncoding = DeltaEncoding.XOR) public float Price;\n" +
+            "    @Efficient public int size;\n" +
+            "    @Efficient public int Size;\n" +
+            "}\n";
+
+    // Generic field types reach the generated code only as raw classes
+    private static final String LISTS = "package gen;\n" +
+            "import com.rcpooley.effstorage.core.Efficient;\n" +
+            "import java.util.List;\n" +
+            "@Efficient\n" +
+            "public class Lists {\n" +
+            "    @Efficient public List<String> l;\n" +
+            "    @Efficient public int n;\n" +
+            "    @Efficient(storeByDelta = true, blockSize = 4) public long t;\n" +
+            "    @Efficient(storeByDelta = true) public Double d;\n" +
+            "}\n";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void testGeneratesSerializers() throws Exception {
+        ClassLoader loader = compile(true);
+        Assert.assertNotNull(loader.loadClass("gen.Tick$$EfficientSerializer"));
+        Assert.assertNotNull(loader.loadClass("gen.Tick$$EfficientArraySerializer"));
+    }
+
+    @Test
+    public void testGeneratedMatchesReflective() throws Exception {
+        Class<?> generated = compile(true).loadClass("gen.Tick");
+        Class<?> reflective = compile(false).loadClass("gen.Tick");
+
+        Object genTicks = ticks(generated);
+        byte[] data = EfficientStorage.serialize(genTicks);
+        Assert.assertArrayEquals(EfficientStorage.serialize(ticks(reflective)), data);
+        Assert.assertArrayEquals(EfficientStorage.serialize(Array.get(ticks(reflective), 1)), EfficientStorage.serialize(Array.get(genTicks, 1)));
+
+        Object res = EfficientStorage.deserialize(genTicks.getClass(), data);
+        for (int i = 0; i < Array.getLength(res); i++) {
+            Object tick = Array.get(res, i);
+            Assert.assertEquals("s" + i, field(tick, "sym"));
+            Assert.assertEquals(i * 10, field(tick, "qty"));
+            Assert.assertEquals(i % 2 == 0, field(tick, "buy"));
+            Assert.assertEquals((char) ('a' + i), field(tick, "side"));
+            Assert.assertArrayEquals(new int[]{i, i + 1}, (int[]) field(tick, "levels"));
+            Assert.assertEquals(1000L + i * 5, field(tick, "ts"));
+            Assert.assertEquals(1.25 + i, (double) field(tick, "price"), 0);
+            Assert.assertEquals(i - 2, field(tick, "seq"));
+            Assert.assertEquals(-300L * i, field(tick, "gap"));
+        }
+    }
+
+    @Test
+    public void testGeneratedVarintLengths() throws Exception {
+        Class<?> generated = compile(true).loadClass("gen.Tick");
+        Class<?> reflective = compile(false).loadClass("gen.Tick");
+        EfficientOptions options = new EfficientOptions().varintLengths(true);
+
+        Object genTicks = ticks(generated);
+        byte[] data = EfficientStorage.serialize(genTicks, options);
+        Assert.assertArrayEquals(EfficientStorage.serialize(ticks(reflective), options), data);
+        Assert.assertTrue(data.length < EfficientStorage.serialize(genTicks).length);
+
+        Object res = EfficientStorage.deserialize(genTicks.getClass(), data, options);
+        Assert.assertEquals("s3", field(Array.get(res, 3), "sym"));
+        Assert.assertArrayEquals(new int[]{3, 4}, (int[]) field(Array.get(res, 3), "levels"));
+        Assert.assertEquals(1015L, field(Array.get(res, 3), "ts"));
+    }
+
+    @Test
+    public void testGeneratedElementIndex() throws Exception {
+        Class<?> generated = compile(true).loadClass("gen.Tick");
+        Class<?> reflective = compile(false).loadClass("gen.Tick");
+        EfficientOptions options = new EfficientOptions().elementIndex(2);
+
+        // The generated array serializer leaves indexed arrays to the runtime
+        Object genTicks = ticks(generated);
+        byte[] data = EfficientStorage.serialize(genTicks, options);
+        Assert.assertArrayEquals(EfficientStorage.serialize(ticks(reflective), options), data);
+
+        Object res = EfficientStorage.deserialize(genTicks.getClass(), data, options);
+        Assert.assertEquals("s3", field(Array.get(res, 3), "sym"));
+        Assert.assertEquals(1015L, field(Array.get(res, 3), "ts"));
+    }
+
+    @Test
+    public void testGeneratedCaseDistinctFields() throws Exception {
+        Class<?> generated = compile(true).loadClass("gen.Quote");
+        Class<?> reflective = compile(false).loadClass("gen.Quote");
+
+        Object genQuotes = quotes(generated);
+        byte[] data = EfficientStorage.serialize(genQuotes);
+        Assert.assertArrayEquals(EfficientStorage.serialize(quotes(reflective)), data);
+
+        Object res = EfficientStorage.deserialize(genQuotes.getClass(), data);
+        for (int i = 0; i < Array.getLength(res); i++) {
+            Object quote = Array.get(res, i);
+            Assert.assertEquals(500L + i * 3, field(quote, "price"));
+            Assert.assertEquals(-2.5f * i, (float) field(quote, "Price"), 0);
+            Assert.assertEquals(i, field(quote, "size"));
+            Assert.assertEquals(-i, field(quote, "Size"));
+        }
+    }
+
+    @Test
+    public void testGeneratedParallel() throws Exception {
+        Class<?> generated = compile(true).loadClass("gen.Tick");
+        Class<?> reflective = compile(false).loadClass("gen.Tick");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // The generated array serializer leaves parallel delta columns to the runtime
+            EfficientOptions options = new EfficientOptions().executor(executor).parallelThreshold(1);
+            Object genTicks = ticks(generated);
+            byte[] data = EfficientStorage.serialize(genTicks, options);
+            Assert.assertArrayEquals(EfficientStorage.serialize(ticks(reflective)), data);
+
+            Object res = EfficientStorage.deserialize(genTicks.getClass(), data, options);
+            Assert.assertEquals(1015L, field(Array.get(res, 3), "ts"));
+            Assert.assertEquals(4.25, (double) field(Array.get(res, 3), "price"), 0);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testGeneratedCompilesWithoutWarnings() throws Exception {
+        ClassLoader loader = compile(true, Collections.singletonMap("Lists", LISTS), "-Xlint:all", "-Werror");
+        Assert.assertNotNull(loader.loadClass("gen.Lists$$EfficientSerializer"));
+        Assert.assertNotNull(loader.loadClass("gen.Lists$$EfficientArraySerializer"));
+    }
+
+    private static Object quotes(Class<?> type) throws ReflectiveOperationException {
+        Object arr = Array.newInstance(type, 5);
+        for (int i = 0; i < 5; i++) {
+            Object quote = type.getConstructor().newInstance();
+            type.getField("price").setLong(quote, 500L + i * 3);
+            type.getField("Price").setFloat(quote, -2.5f * i);
+            type.getField("size").setInt(quote, i);
+            type.getField("Size").setInt(quote, -i);
+            Array.set(arr, i, quote);
+        }
+        return arr;
+    }
+
+    private static Object ticks(Class<?> type) throws ReflectiveOperationException {
+        Constructor<?> c = type.getConstructor(String.class, int.class, boolean.class, char.class, int[].class, long.class, double.class, int.class, long.class);
+        Object arr = Array.newInstance(type, 4);
+        for (int i = 0; i < 4; i++) {
+            Array.set(arr, i, c.newInstance("s" + i, i * 10, i % 2 == 0, (char) ('a' + i), new int[]{i, i + 1}, 1000L + i * 5, 1.25 + i, i - 2, -300L * i));
+        }
+        return arr;
+    }
+
+    private static Object field(Object obj, String name) throws ReflectiveOperationException {
+        Field f = obj.getClass().getDeclaredField(name);
+        f.setAccessible(true);
+        return f.get(obj);
+    }
+
+    private ClassLoader compile(boolean process) throws IOException {
+        Map<String, String> sources = new LinkedHashMap<>();
+        sources.put("Tick", TICK);
+        sources.put("Quote", QUOTE);
+        return compile(process, sources);
+    }
+
+    private ClassLoader compile(boolean process, Map<String, String> sources, String... javacOptions) throws IOException {
+        Path src = temp.newFolder().toPath();
+        Path out = temp.newFolder().toPath();
+        List<File> files = new ArrayList<>();
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            Path file = src.resolve(source.getKey() + ".java");
+            Files.write(file, source.getValue().getBytes("UTF-8"));
+            files.add(file.toFile());
+        }
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fm = compiler.getStandardFileManager(null, null, null);
+        String classpath = location(Efficient.class) + File.pathSeparator + location(EfficientProcessor.class);
+        List<String> options = new ArrayList<>(Arrays.asList("-classpath", classpath, "-d", out.toString(), "-s", out.toString()));
+        options.addAll(Arrays.asList(javacOptions));
+        JavaCompiler.CompilationTask task = compiler.getTask(null, fm, null, options, null, fm.getJavaFileObjectsFromFiles(files));
+        if (process) {
+            task.setProcessors(Collections.singletonList(new EfficientProcessor()));
+        } else {
+            task.setProcessors(Collections.emptyList());
+        }
+        Assert.assertTrue(task.call());
+
+        return new URLClassLoader(new URL[]{out.toUri().toURL()}, TestEfficientProcessor.class.getClassLoader());
+    }
+
+    private static String location(Class<?> type) {
+        try {
+            return new File(type.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,40 +1,54 @@
 package com.rcpooley.effstorage.bitio;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 public class BitReader {
 
+    private static final int CHUNK_SIZE = 4096;
+
     private InputStream is;
 
-    private int curByte;
+    private ByteBuffer buffer;
+
+    // Bits read from the source but not yet consumed, right-aligned. Never more than the bytes asked for are
+    // taken from the source, so whatever follows the bit stream is left in place.
+    private long acc;
+
+    private int accBits;
 
-    private int availableBits;
+    private byte[] chunk;
+
+    // chunk viewed as big-endian words
+    private ByteBuffer chunkWords;
 
     public BitReader(InputStream is) {
         this.is = is;
     }
 
+    // Reads straight from the buffer, advancing its position only past the bytes holding consumed bits
+    public BitReader(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
     public long readBitsLong(int numBits) throws IOException {
         if (numBits > 64 || numBits < 0) {
             throw new RuntimeException("Cannot read " + numBits + " bits");
         }
 
-        long b = 0;
-        int todo = numBits;
-        while (todo > 0) {
-            if (availableBits == 0) {
-                curByte = is.read();
-                availableBits = 8;
-            }
+        if (numBits > 56) {
+            long hi = readBitsLong(numBits - 32);
+            return (hi << 32) | readBitsLong(32);
+        }
 
-            int toRead = Math.min(todo, availableBits);
-            int d = (curByte >> (availableBits - toRead)) & BitUtil.getMask(toRead);
-            b = (b << toRead) | d;
-            todo -= toRead;
-            availableBits -= toRead;
+        while (accBits < numBits) {
+            acc = (acc << 8) | nextByte();
+            accBits += 8;
         }
-        return b;
+        accBits -= numBits;
+        return (acc >>> accBits) & BitUtil.getMaskLong(numBits);
     }
 
     public int readBits(int numBits) throws IOException {
@@ -43,4 +57,104 @@ public class BitReader {
         }
         return (int) readBitsLong(numBits);
     }
+
+    // Drops what is left of a partly read byte
+    public void align() {
+        accBits -= accBits & 7;
+    }
+
+    public void readBytes(byte[] b, int off, int len) throws IOException {
+        if ((accBits & 7) != 0) {
+            for (int i = off; i < off + len; i++) b[i] = (byte) readBits(8);
+            return;
+        }
+
+        // On a byte boundary, whole bytes still held are handed out first and the rest is read straight through
+        while (accBits > 0 && len > 0) {
+            accBits -= 8;
+            b[off++] = (byte) (acc >>> accBits);
+            len--;
+        }
+        readFully(b, off, len);
+    }
+
+    public void readPacked(long[] out, int width) throws IOException {
+        readPacked(out, 0, out.length, width);
+    }
+
+    public void readPacked(long[] out, int off, int len, int width) throws IOException {
+        if (width > 64 || width < 0) {
+            throw new RuntimeException("Cannot read " + width + " bits");
+        }
+        if (width > 56) {
+            for (int i = off; i < off + len; i++) out[i] = readBitsLong(width);
+            return;
+        }
+
+        // Pull exactly the bytes the values occupy, a chunk at a time, and decode them through the accumulator. While
+        // 8 bytes are left in the chunk the accumulator is topped up from one word load, as many whole bytes as fit.
+        long missingBits = (long) len * width - accBits;
+        long owed = missingBits <= 0 ? 0 : (missingBits + 7) >>> 3;
+        if (chunk == null) {
+            chunk = new byte[CHUNK_SIZE];
+            chunkWords = ByteBuffer.wrap(chunk);
+        }
+        byte[] c = chunk;
+        ByteBuffer words = chunkWords;
+        int pos = 0;
+        int lim = 0;
+
+        long mask = BitUtil.getMaskLong(width);
+        long a = acc;
+        int bits = accBits;
+        for (int i = off; i < off + len; i++) {
+            if (bits < width) {
+                if (lim - pos >= 8) {
+                    int take = ((63 - bits) >>> 3) << 3;
+                    a = (a << take) | (words.getLong(pos) >>> (64 - take));
+                    pos += take >>> 3;
+                    bits += take;
+                } else {
+                    while (bits < width) {
+                        if (pos == lim) {
+                            lim = (int) Math.min(owed, c.length);
+                            readFully(c, 0, lim);
+                            owed -= lim;
+                            pos = 0;
+                        }
+                        a = (a << 8) | (c[pos++] & 0xFF);
+                        bits += 8;
+                    }
+                }
+            }
+            bits -= width;
+            out[i] = (a >>> bits) & mask;
+        }
+        acc = a;
+        accBits = bits;
+    }
+
+    private int nextByte() throws IOException {
+        if (buffer != null) {
+            if (!buffer.hasRemaining()) throw new EOFException();
+            return buffer.get() & 0xFF;
+        }
+        int b = is.read();
+        if (b < 0) throw new EOFException();
+        return b;
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        if (buffer != null) {
+            if (buffer.remaining() < len) throw new EOFException();
+            buffer.get(b, off, len);
+            return;
+        }
+        int n = 0;
+        while (n < len) {
+            int r = is.read(b, off + n, len - n);
+            if (r < 0) throw new EOFException();
+            n += r;
+        }
+    }
 }
@@ -4,4 +4,17 @@ public class BitUtil {
     public static int getMask(int numBits) {
         return ~(~0 << numBits);
     }
+
+    public static long getMaskLong(int numBits) {
+        return numBits >= 64 ? -1L : ~(-1L << numBits);
+    }
+
+    // Number of bits needed to hold every value in two's complement, given the OR of (v ^ (v >> 63)) over them
+    public static int signedBits(long folded) {
+        return Math.min(64, 65 - Long.numberOfLeadingZeros(folded));
+    }
+
+    public static long signExtend(long value, int numBits) {
+        return numBits >= 64 ? value : (value << (64 - numBits)) >> (64 - numBits);
+    }
 }
@@ -2,41 +2,168 @@ package com.rcpooley.effstorage.bitio;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public class BitWriter {
 
+    private static final int BUFFER_SIZE = 4096;
+
     private OutputStream os;
 
-    private int curByte;
+    // Allocated on first use, since most writers never see a bit
+    private byte[] buf;
+
+    // buf viewed as big-endian words
+    private ByteBuffer words;
+
+    private int bufPos;
+
+    private long flushed;
+
+    // Pending bits, right-aligned, written MSB first once 64 have accumulated
+    private long acc;
 
-    private int curBits;
+    private int accBits;
 
     public BitWriter(OutputStream os) {
         this.os = os;
     }
 
     public void writeBits(long data, int numBits) throws IOException {
-        int todo = numBits;
-        while (todo > 0) {
-            int toRead = Math.min(8 - curBits, todo);
-            int b = (int) (data >> (todo - toRead)) & BitUtil.getMask(toRead);
-            curByte = (curByte << toRead) | b;
-            todo -= toRead;
-            curBits += toRead;
-            if (curBits == 8) {
-                os.write(curByte);
-                curByte = 0;
-                curBits = 0;
+        if (numBits <= 0) return;
+        data &= BitUtil.getMaskLong(numBits);
+
+        int free = 64 - accBits;
+        if (numBits < free) {
+            acc = (acc << numBits) | data;
+            accBits += numBits;
+            return;
+        }
+
+        // Top off the accumulator, store it as one word and keep the bits that did not fit
+        int rest = numBits - free;
+        long word = free == 64 ? data : (acc << free) | (data >>> rest);
+        putLong(word);
+        acc = data & BitUtil.getMaskLong(rest);
+        accBits = rest;
+    }
+
+    // Appends the first numBits bits of src, read MSB first, a word at a time
+    public void writeBits(byte[] src, long numBits) throws IOException {
+        int p = 0;
+        for (long words = numBits >>> 6; words > 0; words--, p += 8) {
+            long word = 0;
+            for (int j = 0; j < 8; j++) word = (word << 8) | (src[p + j] & 0xFF);
+            writeBits(word, 64);
+        }
+
+        int rest = (int) (numBits & 63);
+        if (rest > 0) {
+            int bytes = (rest + 7) >>> 3;
+            long word = 0;
+            for (int j = 0; j < bytes; j++) word = (word << 8) | (src[p + j] & 0xFF);
+            writeBits(word >>> (bytes * 8 - rest), rest);
+        }
+    }
+
+    // Bits written so far, not counting the padding finish() adds
+    public long bitCount() {
+        return (flushed + bufPos) * 8 + accBits;
+    }
+
+    public void writePacked(long[] values, int width) throws IOException {
+        writePacked(values, 0, values.length, width);
+    }
+
+    // Packs the values through a local accumulator, storing each 64 bits as one word
+    public void writePacked(long[] values, int off, int len, int width) throws IOException {
+        if (width <= 0) return;
+
+        long mask = BitUtil.getMaskLong(width);
+        long a = acc;
+        int bits = accBits;
+        for (int i = off; i < off + len; i++) {
+            long v = values[i] & mask;
+            int free = 64 - bits;
+            if (width < free) {
+                a = (a << width) | v;
+                bits += width;
+            } else {
+                int rest = width - free;
+                putLong(free == 64 ? v : (a << free) | (v >>> rest));
+                a = v & BitUtil.getMaskLong(rest);
+                bits = rest;
             }
         }
+        acc = a;
+        accBits = bits;
+    }
+
+    // Pads with zero bits up to the next byte boundary
+    public void align() throws IOException {
+        int partial = accBits & 7;
+        if (partial != 0) writeBits(0, 8 - partial);
+    }
+
+    public void writeBytes(byte[] b, int off, int len) throws IOException {
+        if ((accBits & 7) != 0) {
+            for (int i = off; i < off + len; i++) writeBits(b[i], 8);
+            return;
+        }
+
+        // On a byte boundary the pending bits drain as whole bytes and the rest is copied through
+        while (accBits > 0) {
+            accBits -= 8;
+            putByte((int) (acc >>> accBits));
+        }
+        acc = 0;
+        while (len > 0) {
+            if (buf == null || bufPos == BUFFER_SIZE) flushBuffer();
+            int n = Math.min(len, BUFFER_SIZE - bufPos);
+            System.arraycopy(b, off, buf, bufPos, n);
+            bufPos += n;
+            off += n;
+            len -= n;
+        }
     }
 
     public void finish() throws IOException {
-        if (curBits > 0) {
-            os.write(curByte << (8 - curBits));
-            curByte = 0;
-            curBits = 0;
+        while (accBits >= 8) {
+            accBits -= 8;
+            putByte((int) (acc >>> accBits));
         }
+        if (accBits > 0) {
+            putByte((int) (acc << (8 - accBits)));
+        }
+        acc = 0;
+        accBits = 0;
+
+        if (bufPos > 0) {
+            os.write(buf, 0, bufPos);
+            flushed += bufPos;
+            bufPos = 0;
+        }
+    }
+
+    private void putLong(long word) throws IOException {
+        if (buf == null || bufPos + 8 > BUFFER_SIZE) flushBuffer();
+        words.putLong(bufPos, word);
+        bufPos += 8;
     }
 
+    private void putByte(int b) throws IOException {
+        if (buf == null || bufPos == BUFFER_SIZE) flushBuffer();
+        buf[bufPos++] = (byte) b;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buf == null) {
+            buf = new byte[BUFFER_SIZE];
+            words = ByteBuffer.wrap(buf);
+            return;
+        }
+        os.write(buf, 0, bufPos);
+        flushed += bufPos;
+        bufPos = 0;
+    }
 }
@@ -0,0 +1,104 @@
+package com.rcpooley.effstorage.bitio;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// LEB128 variable-length integers: seven bits per byte, least significant group first, with the high bit set on
+// every byte but the last. Signed values are ZigZag-mapped first so small negatives stay short.
+public final class VarInt {
+
+    private VarInt() {}
+
+    public static int encodeZigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    public static long encodeZigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static int decodeZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static long decodeZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static int sizeOf(long value) {
+        // One byte per started group of seven significant bits
+        return Math.max(1, (70 - Long.numberOfLeadingZeros(value)) / 7);
+    }
+
+    public static void writeUnsignedInt(DataOutput out, int value) throws IOException {
+        // The one and two byte forms cover nearly all lengths and small fields
+        if ((value & ~0x7F) == 0) {
+            out.writeByte(value);
+            return;
+        }
+        if ((value & ~0x3FFF) == 0) {
+            out.writeShort(((value & 0x7F) | 0x80) << 8 | (value >>> 7));
+            return;
+        }
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static void writeUnsignedLong(DataOutput out, long value) throws IOException {
+        if ((value & ~0x3FFFL) == 0) {
+            writeUnsignedInt(out, (int) value);
+            return;
+        }
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static void writeSignedInt(DataOutput out, int value) throws IOException {
+        writeUnsignedInt(out, encodeZigZag(value));
+    }
+
+    public static void writeSignedLong(DataOutput out, long value) throws IOException {
+        writeUnsignedLong(out, encodeZigZag(value));
+    }
+
+    public static int readUnsignedInt(DataInput in) throws IOException {
+        int b = in.readByte();
+        if (b >= 0) return b;
+
+        int result = b & 0x7F;
+        for (int shift = 7; shift < 35; shift += 7) {
+            b = in.readByte();
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) return result;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static long readUnsignedLong(DataInput in) throws IOException {
+        int b = in.readByte();
+        if (b >= 0) return b;
+
+        long result = b & 0x7F;
+        for (int shift = 7; shift < 70; shift += 7) {
+            b = in.readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return result;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static int readSignedInt(DataInput in) throws IOException {
+        return decodeZigZag(readUnsignedInt(in));
+    }
+
+    public static long readSignedLong(DataInput in) throws IOException {
+        return decodeZigZag(readUnsignedLong(in));
+    }
+}
@@ -0,0 +1,158 @@
+package com.rcpooley.effstorage.core;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+class ClassPlan {
+
+    enum Kind {
+        SERIALIZER,
+        SERIALIZABLE,
+        ARRAY,
+        PRIMITIVE_ARRAY,
+        EFFICIENT,
+        UNKNOWN
+    }
+
+    static class FieldData {
+        final Field field;
+        final FieldAccessor accessor;
+        final Efficient efficient;
+        final EfficientDeltaValue deltaValue;
+        final boolean varint;
+        final DeltaEncoding deltaEncoding;
+        final int blockSize;
+
+        FieldData(Field field, Efficient efficient, EfficientDeltaValue deltaValue) {
+            this.field = field;
+            this.accessor = new FieldAccessor(field);
+            this.efficient = efficient;
+            this.deltaValue = deltaValue;
+            this.varint = efficient.varint();
+            this.deltaEncoding = efficient.deltaEncoding();
+            this.blockSize = efficient.blockSize();
+        }
+    }
+
+    // Must match the names emitted by EfficientProcessor
+    static final String GENERATED_SUFFIX = "$$EfficientSerializer";
+
+    static final String GENERATED_ARRAY_SUFFIX = "$$EfficientArraySerializer";
+
+    private static final FieldData[] NO_FIELDS = new FieldData[0];
+
+    final Class<?> type;
+
+    final Kind kind;
+
+    final EfficientSerializer serializer;
+
+    final boolean efficient;
+
+    final ValueKind componentKind;
+
+    final FieldData[] fields;
+
+    final FieldData[] deltaFields;
+
+    final Constructor<?> constructor;
+
+    // An array serializer generated by the efficientstorage-processor, which leaves out any element index
+    final boolean generatedArray;
+
+    // Plain @Efficient classes, whose fields the engine lays out itself
+    final boolean byFields;
+
+    // Arrays of this class are written in columns
+    final boolean columnar;
+
+    ClassPlan(Class<?> type, EfficientSerializer serializer) {
+        Efficient annotation = type.getAnnotation(Efficient.class);
+        this.type = type;
+        this.efficient = annotation != null;
+        boolean registered = serializer != null;
+
+        // Prefer serializers generated at compile time by the efficientstorage-processor
+        if (serializer == null && efficient && !EfficientSerializable.class.isAssignableFrom(type)) {
+            serializer = findGenerated(type, GENERATED_SUFFIX);
+        }
+        Efficient componentAnnotation = type.isArray() ? type.getComponentType().getAnnotation(Efficient.class) : null;
+        if (serializer == null && componentAnnotation != null && !componentAnnotation.columnar()) {
+            serializer = findGenerated(type.getComponentType(), GENERATED_ARRAY_SUFFIX);
+            this.generatedArray = serializer != null;
+        } else {
+            this.generatedArray = false;
+        }
+
+        if (serializer != null) {
+            kind = Kind.SERIALIZER;
+        } else if (EfficientSerializable.class.isAssignableFrom(type)) {
+            kind = Kind.SERIALIZABLE;
+        } else if (type.isArray() && type.getComponentType().isPrimitive()) {
+            kind = Kind.PRIMITIVE_ARRAY;
+        } else if (type.isArray()) {
+            kind = Kind.ARRAY;
+        } else if (efficient && annotation.compiled()) {
+            kind = Kind.SERIALIZER;
+            serializer = new CompiledSerializer<>(this);
+        } else if (efficient) {
+            kind = Kind.EFFICIENT;
+        } else {
+            kind = Kind.UNKNOWN;
+        }
+        this.serializer = serializer;
+        this.componentKind = type.isArray() ? ValueKind.of(type.getComponentType()) : null;
+
+        // Sort the @Efficient fields by name and split off the storeByDelta ones
+        List<FieldData> regular = new ArrayList<>();
+        List<FieldData> delta = new ArrayList<>();
+        if (!type.isArray() && !type.isPrimitive()) {
+            Field[] declared = type.getDeclaredFields();
+            Arrays.sort(declared, Comparator.comparing(Field::getName));
+            for (Field field : declared) {
+                Efficient eff = field.getAnnotation(Efficient.class);
+                if (eff == null) continue;
+                if (eff.storeByDelta()) {
+                    delta.add(new FieldData(field, eff, EfficientStorage.getDeltaValue(field.getType(), eff.deltaEncoding())));
+                } else {
+                    regular.add(new FieldData(field, eff, null));
+                }
+            }
+        }
+        this.fields = regular.isEmpty() ? NO_FIELDS : regular.toArray(NO_FIELDS);
+        this.deltaFields = delta.isEmpty() ? NO_FIELDS : delta.toArray(NO_FIELDS);
+
+        this.constructor = efficient ? findConstructor(type) : null;
+        this.byFields = efficient && !registered && !EfficientSerializable.class.isAssignableFrom(type);
+        this.columnar = byFields && annotation.columnar();
+    }
+
+    private static EfficientSerializer findGenerated(Class<?> type, String suffix) {
+        Class<?> generated;
+        try {
+            generated = Class.forName(type.getName() + suffix, true, type.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+
+        try {
+            return (EfficientSerializer) generated.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalStateException("Cannot instantiate generated serializer " + generated.getName(), e);
+        }
+    }
+
+    private static Constructor<?> findConstructor(Class<?> type) {
+        try {
+            Constructor<?> c = type.getDeclaredConstructor();
+            c.setAccessible(true);
+            return c;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.rcpooley.effstorage.core;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+// Compresses the blocks of a compressed payload. Blocks are handed over one per call and possibly from several
+// threads at once, so implementations must be thread safe.
+public interface Codec {
+
+    // Stores blocks as they are, keeping the block layout for partial reads
+    Codec NONE = new NoCodec();
+
+    Codec DEFLATE = new DeflateCodec(Deflater.DEFAULT_COMPRESSION);
+
+    static Codec deflate(int level) {
+        return new DeflateCodec(level);
+    }
+
+    // Written ahead of the blocks as a single byte, so a payload is never decompressed with the wrong codec. Other
+    // codecs take ids from 16 to 255; those below 16 are kept for the codecs built in here.
+    int id();
+
+    byte[] compress(byte[] src, int off, int len) throws IOException;
+
+    // Fills dst from dstOff with exactly dstLen decompressed bytes
+    void decompress(byte[] src, int off, int len, byte[] dst, int dstOff, int dstLen) throws IOException;
+}
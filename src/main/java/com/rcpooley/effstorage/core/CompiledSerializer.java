@@ -0,0 +1,298 @@
+package com.rcpooley.effstorage.core;
+
+import com.rcpooley.effstorage.bitio.VarInt;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Modifier;
+
+import static java.lang.invoke.MethodType.methodType;
+
+// Serializer for classes marked @Efficient(compiled = true). On first use the fields are composed into one
+// method handle chain of straight-line writes and reads, which the JVM spins into bytecode once it is hot.
+final class CompiledSerializer<T> implements EfficientSerializer<T> {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final MethodType WRITER_TYPE = methodType(void.class, Object.class, DataOutputStream.class);
+
+    private static final MethodType FILLER_TYPE = methodType(void.class, Object.class, DataInputStream.class);
+
+    private static final MethodType READER_TYPE = methodType(Object.class, DataInputStream.class);
+
+    private static final MethodHandle WRITE_VALUE;
+
+    private static final MethodHandle READ_VALUE;
+
+    private static final MethodHandle CHECK_NOT_NULL;
+
+    private static final MethodHandle NO_CONSTRUCTOR;
+
+    private static final MethodHandle NOOP;
+
+    private static final MethodHandle WRITE_VARINT;
+
+    private static final MethodHandle READ_VARINT;
+
+    static {
+        try {
+            WRITE_VALUE = LOOKUP.findStatic(EfficientStorage.class, "writeValue", WRITER_TYPE);
+            READ_VALUE = LOOKUP.findStatic(EfficientStorage.class, "readValue", methodType(Object.class, Class.class, DataInputStream.class));
+            CHECK_NOT_NULL = LOOKUP.findStatic(CompiledSerializer.class, "checkNotNull", methodType(Object.class, Object.class));
+            NO_CONSTRUCTOR = LOOKUP.findStatic(CompiledSerializer.class, "noConstructor", methodType(Object.class, Class.class));
+            NOOP = LOOKUP.findStatic(CompiledSerializer.class, "noop", methodType(void.class));
+            WRITE_VARINT = LOOKUP.findStatic(EfficientStorage.class, "writeVarint", methodType(void.class, ClassPlan.FieldData.class, Object.class, DataOutputStream.class));
+            READ_VARINT = LOOKUP.findStatic(EfficientStorage.class, "readVarint", methodType(void.class, ClassPlan.FieldData.class, Object.class, DataInputStream.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final ClassPlan plan;
+
+    private volatile MethodHandle writer;
+
+    private volatile MethodHandle reader;
+
+    CompiledSerializer(ClassPlan plan) {
+        this.plan = plan;
+    }
+
+    @Override
+    public void serialize(T obj, DataOutputStream dos) throws IOException {
+        MethodHandle w = writer;
+        if (w == null) {
+            writer = w = compileWriter();
+        }
+        try {
+            w.invokeExact((Object) obj, dos);
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T deserialize(DataInputStream dis) throws IOException {
+        MethodHandle r = reader;
+        if (r == null) {
+            reader = r = compileReader();
+        }
+        try {
+            return (T) (Object) r.invokeExact(dis);
+        } catch (IOException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private MethodHandle compileWriter() {
+        MethodHandle chain = MethodHandles.dropArguments(NOOP, 0, WRITER_TYPE.parameterList());
+        for (int i = plan.fields.length - 1; i >= 0; i--) {
+            chain = MethodHandles.foldArguments(chain, fieldWriter(plan.fields[i]));
+        }
+        return chain;
+    }
+
+    private MethodHandle compileReader() {
+        MethodHandle fill = MethodHandles.dropArguments(NOOP, 0, FILLER_TYPE.parameterList());
+        for (int i = plan.fields.length - 1; i >= 0; i--) {
+            fill = MethodHandles.foldArguments(fill, fieldReader(plan.fields[i]));
+        }
+
+        // (obj, dis) -> { fill(obj, dis); return obj; }
+        MethodHandle fillAndReturn = MethodHandles.foldArguments(
+                MethodHandles.dropArguments(MethodHandles.identity(Object.class), 1, DataInputStream.class),
+                fill);
+
+        // dis -> fillAndReturn(new T(), dis)
+        return MethodHandles.foldArguments(fillAndReturn,
+                MethodHandles.dropArguments(constructor(), 0, DataInputStream.class));
+    }
+
+    private MethodHandle fieldWriter(ClassPlan.FieldData data) {
+        FieldAccessor accessor = data.accessor;
+        if (data.varint) {
+            return varintWriter(data);
+        }
+        if (accessor.kind == ValueKind.OBJECT) {
+            return MethodHandles.filterArguments(objectWriter(accessor.type), 0, accessor.getterHandle());
+        }
+
+        // (dos, value) -> dos.writeX(value), fed by the exact-typed getter and flipped to (obj, dos)
+        MethodHandle write = primitiveWrite(accessor.kind)
+                .asType(methodType(void.class, DataOutputStream.class, accessor.type));
+        MethodHandle bound = MethodHandles.filterArguments(write, 1, accessor.getterHandle());
+        return MethodHandles.permuteArguments(bound, WRITER_TYPE, 1, 0);
+    }
+
+    private MethodHandle fieldReader(ClassPlan.FieldData data) {
+        FieldAccessor accessor = data.accessor;
+        if (data.varint) {
+            return varintReader(data);
+        }
+        if (accessor.kind == ValueKind.OBJECT) {
+            return MethodHandles.filterArguments(accessor.setterHandle(), 1, objectReader(accessor.type));
+        }
+
+        // (obj, dis) -> setter(obj, dis.readX())
+        return MethodHandles.filterArguments(accessor.setterHandle(), 1, primitiveRead(accessor.kind));
+    }
+
+    // Plain int and long fields go straight to VarInt; the rest share the engine's varint field codec
+    private static MethodHandle varintWriter(ClassPlan.FieldData data) {
+        FieldAccessor accessor = data.accessor;
+        if (accessor.kind != ValueKind.INT && accessor.kind != ValueKind.LONG) {
+            return MethodHandles.insertArguments(WRITE_VARINT, 0, data);
+        }
+        MethodHandle write = varintHandle("writeSigned", accessor.kind, void.class, DataOutput.class)
+                .asType(methodType(void.class, DataOutputStream.class, accessor.type));
+        MethodHandle bound = MethodHandles.filterArguments(write, 1, accessor.getterHandle());
+        return MethodHandles.permuteArguments(bound, WRITER_TYPE, 1, 0);
+    }
+
+    private static MethodHandle varintReader(ClassPlan.FieldData data) {
+        FieldAccessor accessor = data.accessor;
+        if (accessor.kind != ValueKind.INT && accessor.kind != ValueKind.LONG) {
+            return MethodHandles.insertArguments(READ_VARINT, 0, data);
+        }
+        MethodHandle read = varintHandle("readSigned", accessor.kind, accessor.type, DataInput.class)
+                .asType(methodType(accessor.type, DataInputStream.class));
+        return MethodHandles.filterArguments(accessor.setterHandle(), 1, read);
+    }
+
+    private static MethodHandle varintHandle(String prefix, ValueKind kind, Class<?> returnType, Class<?> stream) {
+        Class<?> type = kind == ValueKind.INT ? int.class : long.class;
+        String name = prefix + (kind == ValueKind.INT ? "Int" : "Long");
+        MethodType mt = returnType == void.class ? methodType(void.class, stream, type) : methodType(type, stream);
+        try {
+            return LOOKUP.findStatic(VarInt.class, name, mt);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle objectWriter(Class<?> declared) {
+        MethodHandle direct = directSerializer(declared);
+        if (direct == null) {
+            return WRITE_VALUE;
+        }
+        MethodHandle write = MethodHandles.insertArguments(direct, 0, plans(declared).serializer);
+        return MethodHandles.filterArguments(write, 0, CHECK_NOT_NULL);
+    }
+
+    private static MethodHandle objectReader(Class<?> declared) {
+        if (directSerializer(declared) == null) {
+            return MethodHandles.insertArguments(READ_VALUE, 0, declared);
+        }
+        try {
+            return LOOKUP.findVirtual(EfficientSerializer.class, "deserialize", READER_TYPE)
+                    .bindTo(plans(declared).serializer);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Fields whose declared type is final always hold exactly that type, so they can skip dispatch entirely
+    private static MethodHandle directSerializer(Class<?> declared) {
+        if (!Modifier.isFinal(declared.getModifiers()) || declared.isArray()) return null;
+        if (plans(declared).kind != ClassPlan.Kind.SERIALIZER) return null;
+        try {
+            return LOOKUP.findVirtual(EfficientSerializer.class, "serialize", WRITER_TYPE);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private MethodHandle constructor() {
+        if (plan.constructor == null) {
+            return MethodHandles.insertArguments(NO_CONSTRUCTOR, 0, plan.type);
+        }
+        try {
+            return LOOKUP.unreflectConstructor(plan.constructor).asType(methodType(Object.class));
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle primitiveWrite(ValueKind kind) {
+        try {
+            switch (kind) {
+                case BOOLEAN:
+                    return LOOKUP.findVirtual(DataOutputStream.class, "writeBoolean", methodType(void.class, boolean.class));
+                case BYTE:
+                    return LOOKUP.findVirtual(DataOutputStream.class, "writeByte", methodType(void.class, int.class));
+                case SHORT:
+                    return LOOKUP.findVirtual(DataOutputStream.class, "writeShort", methodType(void.class, int.class));
+                case CHAR:
+                    return LOOKUP.findVirtual(DataOutputStream.class, "writeChar", methodType(void.class, int.class));
+                case INT:
+                    return LOOKUP.findVirtual(DataOutputStream.class, "writeInt", methodType(void.class, int.class));
+                case LONG:
+                    return LOOKUP.findVirtual(DataOutputStream.class, "writeLong", methodType(void.class, long.class));
+                case FLOAT:
+                    return LOOKUP.findVirtual(DataOutputStream.class, "writeFloat", methodType(void.class, float.class));
+                case DOUBLE:
+                    return LOOKUP.findVirtual(DataOutputStream.class, "writeDouble", methodType(void.class, double.class));
+                default:
+                    throw new IllegalArgumentException("Not a primitive kind: " + kind);
+            }
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MethodHandle primitiveRead(ValueKind kind) {
+        try {
+            switch (kind) {
+                case BOOLEAN:
+                    return LOOKUP.findVirtual(DataInputStream.class, "readBoolean", methodType(boolean.class));
+                case BYTE:
+                    return LOOKUP.findVirtual(DataInputStream.class, "readByte", methodType(byte.class));
+                case SHORT:
+                    return LOOKUP.findVirtual(DataInputStream.class, "readShort", methodType(short.class));
+                case CHAR:
+                    return LOOKUP.findVirtual(DataInputStream.class, "readChar", methodType(char.class));
+                case INT:
+                    return LOOKUP.findVirtual(DataInputStream.class, "readInt", methodType(int.class));
+                case LONG:
+                    return LOOKUP.findVirtual(DataInputStream.class, "readLong", methodType(long.class));
+                case FLOAT:
+                    return LOOKUP.findVirtual(DataInputStream.class, "readFloat", methodType(float.class));
+                case DOUBLE:
+                    return LOOKUP.findVirtual(DataInputStream.class, "readDouble", methodType(double.class));
+                default:
+                    throw new IllegalArgumentException("Not a primitive kind: " + kind);
+            }
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ClassPlan plans(Class<?> type) {
+        return EfficientStorage.plan(type);
+    }
+
+    private static void noop() {
+    }
+
+    private static Object checkNotNull(Object obj) throws IOException {
+        if (obj == null) {
+            throw new EfficientIOException(new EfficientException("Tried to serialize null object"));
+        }
+        return obj;
+    }
+
+    private static Object noConstructor(Class<?> type) throws IOException {
+        throw new EfficientIOException(new EfficientException("No default constructor found for class " + type.getName()));
+    }
+}
@@ -0,0 +1,411 @@
+package com.rcpooley.effstorage.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+// A payload cut into blocks that are compressed independently, as serialize writes it when the options name a
+// codec. Blocks are written as soon as they fill, each behind its own lengths, so neither side ever holds more than
+// a few blocks. Walking the lengths finds any block without decompressing the others, so a byte range can be read by
+// decompressing just the blocks it falls in. With an executor in the options blocks are compressed and decompressed
+// in parallel.
+//
+// Layout: the codec id as a byte and the block size, then for each block its decompressed and compressed lengths
+// followed by the block itself, then a zero decompressed length. Every block but the last holds block size bytes.
+public final class CompressedBlocks {
+
+    // How many blocks may be compressing or decompressing at once
+    private static final int IN_FLIGHT = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final Codec codec;
+
+    private final int blockSize;
+
+    private final long length;
+
+    // The buffer the payload sits in, and where each compressed block starts and ends in it
+    private final ByteBuffer data;
+
+    private final int[] starts;
+
+    private final int[] ends;
+
+    private final Executor executor;
+
+    private CompressedBlocks(Codec codec, int blockSize, long length, ByteBuffer data, int[] starts, int[] ends, Executor executor) {
+        this.codec = codec;
+        this.blockSize = blockSize;
+        this.length = length;
+        this.data = data;
+        this.starts = starts;
+        this.ends = ends;
+        this.executor = executor;
+    }
+
+    // Finds the blocks of the payload at the buffer's position, leaving the buffer itself untouched. The options must
+    // name the codec the payload was written with.
+    public static CompressedBlocks open(ByteBuffer buffer, EfficientOptions options) throws EfficientException {
+        ByteBuffer data = buffer.duplicate();
+        try {
+            int blockSize = readHeader(new EfficientInputStream(data, options), options.getCodec());
+
+            List<int[]> blocks = new ArrayList<>();
+            long length = 0;
+            while (true) {
+                if (data.remaining() < 4) throw new IOException("Compressed payload ends early");
+                int raw = data.getInt();
+                if (raw == 0) break;
+                if (data.remaining() < 4) throw new IOException("Compressed payload ends early");
+                int compressed = data.getInt();
+                checkBlock(raw, compressed, blockSize);
+                if (!blocks.isEmpty() && length % blockSize != 0) {
+                    throw new IOException("Corrupt compressed payload: short block before the last");
+                }
+                if (data.remaining() < compressed) throw new IOException("Compressed payload ends early");
+
+                blocks.add(new int[]{data.position(), compressed});
+                data.position(data.position() + compressed);
+                length += raw;
+            }
+
+            int[] starts = new int[blocks.size()];
+            int[] ends = new int[blocks.size()];
+            for (int b = 0; b < starts.length; b++) {
+                starts[b] = blocks.get(b)[0];
+                ends[b] = starts[b] + blocks.get(b)[1];
+            }
+            return new CompressedBlocks(options.getCodec(), blockSize, length, data, starts, ends, options.getExecutor());
+        } catch (EfficientIOException e) {
+            throw e.getCause();
+        } catch (IOException e) {
+            throw new EfficientException(e);
+        }
+    }
+
+    // The decompressed size of the payload
+    public long length() {
+        return length;
+    }
+
+    public int blockSize() {
+        return blockSize;
+    }
+
+    public int blockCount() {
+        return starts.length;
+    }
+
+    // Decompresses the bytes from position through position + len - 1 into dst, touching only their blocks
+    public void read(long position, byte[] dst, int off, int len) throws EfficientException {
+        if (position < 0 || len < 0 || position > length - len) {
+            throw new IndexOutOfBoundsException("Range [" + position + ", " + (position + len) + ") out of bounds for length " + length);
+        }
+
+        try {
+            byte[] block = null;
+            for (int b = (int) (position / blockSize); len > 0; b++) {
+                long blockStart = (long) b * blockSize;
+                int n = blockLength(b);
+                int from = (int) (position - blockStart);
+                int take = Math.min(len, n - from);
+                if (from == 0 && take == n) {
+                    decompressBlock(b, dst, off);
+                } else {
+                    if (block == null) block = new byte[blockSize];
+                    decompressBlock(b, block, 0);
+                    System.arraycopy(block, from, dst, off, take);
+                }
+                position += take;
+                off += take;
+                len -= take;
+            }
+        } catch (IOException e) {
+            throw new EfficientException(e);
+        }
+    }
+
+    // Decompresses the whole payload, which must fit in an array
+    public byte[] decompress() throws EfficientException {
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new EfficientException("Payload of " + length + " bytes is too large for an array");
+        }
+
+        byte[] out = new byte[(int) length];
+        int blocks = blockCount();
+        try {
+            if (executor == null || blocks < 2) {
+                for (int b = 0; b < blocks; b++) {
+                    decompressBlock(b, out, b * blockSize);
+                }
+                return out;
+            }
+
+            List<CompletableFuture<Void>> tasks = new ArrayList<>(blocks);
+            for (int b = 0; b < blocks; b++) {
+                int block = b;
+                tasks.add(ParallelDeltaColumns.submit(() -> {
+                    decompressBlock(block, out, block * blockSize);
+                    return null;
+                }, executor));
+            }
+            for (CompletableFuture<Void> task : tasks) {
+                ParallelDeltaColumns.join(task);
+            }
+        } catch (IOException e) {
+            throw new EfficientException(e);
+        }
+        return out;
+    }
+
+    private int blockLength(int b) {
+        return (int) Math.min(blockSize, length - (long) b * blockSize);
+    }
+
+    private void decompressBlock(int b, byte[] dst, int dstOff) throws IOException {
+        int start = starts[b];
+        int len = ends[b] - start;
+        if (data.hasArray()) {
+            codec.decompress(data.array(), data.arrayOffset() + start, len, dst, dstOff, blockLength(b));
+        } else {
+            byte[] src = new byte[len];
+            ByteBuffer slice = data.duplicate();
+            slice.position(start);
+            slice.get(src);
+            codec.decompress(src, 0, len, dst, dstOff, blockLength(b));
+        }
+    }
+
+    private static int readHeader(DataInputStream dis, Codec codec) throws IOException {
+        int id = dis.readUnsignedByte();
+        if (id != codec.id()) {
+            throw new EfficientIOException(new EfficientException("Payload was compressed with codec " + id + ", but the options give codec " + codec.id()));
+        }
+        int blockSize = dis.readInt();
+        if (blockSize <= 0) {
+            throw new IOException("Corrupt compressed payload: block size " + blockSize);
+        }
+        return blockSize;
+    }
+
+    private static void checkBlock(int raw, int compressed, int blockSize) throws IOException {
+        if (raw < 0 || raw > blockSize || compressed < 0) {
+            throw new IOException("Corrupt compressed payload: block of " + raw + " bytes compressed to " + compressed);
+        }
+    }
+
+    // A block handed to the executor, and how many bytes it holds decompressed
+    private static final class Pending<T> {
+
+        final int raw;
+
+        final CompletableFuture<T> future;
+
+        Pending(int raw, CompletableFuture<T> future) {
+            this.raw = raw;
+            this.future = future;
+        }
+    }
+
+    private static final class Compressed {
+
+        final int raw;
+
+        final byte[] bytes;
+
+        Compressed(int raw, byte[] bytes) {
+            this.raw = raw;
+            this.bytes = bytes;
+        }
+    }
+
+    // Compresses what is written to it a block at a time onto the underlying stream. finish writes the last block
+    // and the end marker; the underlying stream is left open.
+    static final class Compressor extends OutputStream {
+
+        private final DataOutputStream out;
+
+        private final Codec codec;
+
+        private final Executor executor;
+
+        private final ArrayDeque<Pending<byte[]>> pending = new ArrayDeque<>();
+
+        private byte[] block;
+
+        private int size;
+
+        Compressor(DataOutputStream out, EfficientOptions options) throws IOException {
+            this.out = out;
+            this.codec = options.getCodec();
+            this.executor = options.getExecutor();
+            this.block = new byte[options.getCompressionBlockSize()];
+            out.writeByte(codec.id());
+            out.writeInt(block.length);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            block[size++] = (byte) b;
+            if (size == block.length) emit();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, block.length - size);
+                System.arraycopy(b, off, block, size, n);
+                size += n;
+                off += n;
+                len -= n;
+                if (size == block.length) emit();
+            }
+        }
+
+        void finish() throws IOException {
+            if (size > 0) emit();
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+            out.writeInt(0);
+        }
+
+        private void emit() throws IOException {
+            int raw = size;
+            if (executor == null) {
+                writeBlock(raw, codec.compress(block, 0, raw));
+            } else {
+                // The task keeps the filled array, so the next block goes into a new one
+                byte[] filled = block;
+                block = new byte[filled.length];
+                pending.add(new Pending<>(raw, ParallelDeltaColumns.submit(() -> codec.compress(filled, 0, raw), executor)));
+                if (pending.size() >= IN_FLIGHT) writeNext();
+            }
+            size = 0;
+        }
+
+        private void writeNext() throws IOException {
+            Pending<byte[]> next = pending.poll();
+            writeBlock(next.raw, ParallelDeltaColumns.join(next.future));
+        }
+
+        private void writeBlock(int raw, byte[] compressed) throws IOException {
+            out.writeInt(raw);
+            out.writeInt(compressed.length);
+            out.write(compressed);
+        }
+    }
+
+    // Reads a compressed payload off the underlying stream and decompresses it a block at a time, never reading past
+    // the end marker. With an executor it decompresses the blocks ahead of the reader in parallel.
+    static final class Decompressor extends InputStream {
+
+        private final DataInputStream in;
+
+        private final Codec codec;
+
+        private final Executor executor;
+
+        private final int blockSize;
+
+        private final ArrayDeque<Pending<byte[]>> pending = new ArrayDeque<>();
+
+        private boolean ended;
+
+        private byte[] block = new byte[0];
+
+        private int pos;
+
+        private int limit;
+
+        Decompressor(DataInputStream in, EfficientOptions options) throws IOException {
+            this.in = in;
+            this.codec = options.getCodec();
+            this.executor = options.getExecutor();
+            this.blockSize = readHeader(in, codec);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == limit && !nextBlock()) return -1;
+            return block[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (pos == limit && !nextBlock()) return -1;
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(block, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - pos;
+        }
+
+        // Reads on past whatever was left undecoded, up to the end marker
+        void finish() throws IOException {
+            while (!ended) {
+                int raw = in.readInt();
+                if (raw == 0) {
+                    ended = true;
+                } else {
+                    int compressed = in.readInt();
+                    checkBlock(raw, compressed, blockSize);
+                    in.readFully(new byte[compressed]);
+                }
+            }
+        }
+
+        private boolean nextBlock() throws IOException {
+            if (executor == null) {
+                Compressed next = readCompressed();
+                if (next == null) return false;
+                if (block.length < next.raw) block = new byte[blockSize];
+                codec.decompress(next.bytes, 0, next.bytes.length, block, 0, next.raw);
+                limit = next.raw;
+            } else {
+                while (!ended && pending.size() < IN_FLIGHT) {
+                    Compressed next = readCompressed();
+                    if (next == null) break;
+                    pending.add(new Pending<>(next.raw, ParallelDeltaColumns.submit(() -> {
+                        byte[] out = new byte[next.raw];
+                        codec.decompress(next.bytes, 0, next.bytes.length, out, 0, next.raw);
+                        return out;
+                    }, executor)));
+                }
+                Pending<byte[]> next = pending.poll();
+                if (next == null) return false;
+                block = ParallelDeltaColumns.join(next.future);
+                limit = next.raw;
+            }
+            pos = 0;
+            return true;
+        }
+
+        // The next block, or null at the end marker
+        private Compressed readCompressed() throws IOException {
+            if (ended) return null;
+            int raw = in.readInt();
+            if (raw == 0) {
+                ended = true;
+                return null;
+            }
+            int length = in.readInt();
+            checkBlock(raw, length, blockSize);
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new Compressed(raw, bytes);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.rcpooley.effstorage.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Raw deflate, with a Deflater or Inflater of its own for every block so blocks can go through on any thread
+final class DeflateCodec implements Codec {
+
+    private final int level;
+
+    DeflateCodec(int level) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid deflate level " + level);
+        }
+        this.level = level;
+    }
+
+    @Override
+    public int id() {
+        return 1;
+    }
+
+    @Override
+    public byte[] compress(byte[] src, int off, int len) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(src, off, len);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, len / 2));
+            byte[] buf = new byte[Math.max(64, Math.min(len, 1 << 16))];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public void decompress(byte[] src, int off, int len, byte[] dst, int dstOff, int dstLen) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(src, off, len);
+            int pos = 0;
+            while (pos < dstLen) {
+                int n = inflater.inflate(dst, dstOff + pos, dstLen - pos);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Deflated block ends after " + pos + " of " + dstLen + " bytes");
+                }
+                pos += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflated block", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
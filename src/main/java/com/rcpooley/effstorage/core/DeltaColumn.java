@@ -0,0 +1,459 @@
+package com.rcpooley.effstorage.core;
+
+import com.rcpooley.effstorage.bitio.BitReader;
+import com.rcpooley.effstorage.bitio.BitUtil;
+import com.rcpooley.effstorage.bitio.BitWriter;
+import com.rcpooley.effstorage.bitio.VarInt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.rcpooley.effstorage.core.EfficientDeltaValue.Values;
+
+public final class DeltaColumn {
+
+    // Delta-of-delta buckets: a 0 bit for no change, otherwise a unary prefix choosing one of these widths
+    private static final int[] BUCKET_BITS = {7, 9, 12, 64};
+
+    // Offsets per patched block; patch positions are written in PATCH_INDEX_BITS
+    private static final int PATCH_BLOCK = 128;
+
+    private static final int PATCH_INDEX_BITS = 7;
+
+    // A run of a column's bits. A column's parts written one after another give exactly its sequential encoding,
+    // so they can be encoded apart, on different threads, and concatenated.
+    interface Part {
+        void write(BitWriter bw) throws IOException;
+    }
+
+    private DeltaColumn() {}
+
+    public static void write(BitWriter bw, EfficientDeltaValue edv, Values v) throws IOException {
+        write(bw, edv, DeltaEncoding.OFFSET, 0, v);
+    }
+
+    public static Values read(BitReader br, EfficientDeltaValue edv, int len) throws IOException {
+        return read(br, edv, DeltaEncoding.OFFSET, 0, len);
+    }
+
+    public static void write(BitWriter bw, EfficientDeltaValue edv, DeltaEncoding encoding, Values v) throws IOException {
+        write(bw, edv, encoding, 0, v);
+    }
+
+    public static Values read(BitReader br, EfficientDeltaValue edv, DeltaEncoding encoding, int len) throws IOException {
+        return read(br, edv, encoding, 0, len);
+    }
+
+    // With a block size the values are cut into blocks encoded on their own, each starting on a byte boundary
+    public static void write(BitWriter bw, EfficientDeltaValue edv, DeltaEncoding encoding, int blockSize, Values v) throws IOException {
+        if (blockSize > 0) {
+            writeBlocks(bw, edv, encoding, blockSize, v);
+            return;
+        }
+
+        writeSegment(bw, edv, encoding, v.values, 0, v.values.length);
+
+        // Write the scale
+        if (edv.useScale()) bw.writeBits(v.scale, 32);
+    }
+
+    public static Values read(BitReader br, EfficientDeltaValue edv, DeltaEncoding encoding, int blockSize, int len) throws IOException {
+        if (blockSize > 0) {
+            return readBlocks(br, edv, encoding, blockSize, len);
+        }
+
+        long[] vals = new long[len];
+        readSegment(br, edv, encoding, vals, 0, len);
+
+        int scale = edv.useScale() ? br.readBits(32) : 0;
+
+        return new Values(vals, scale);
+    }
+
+    public static int blockCount(int len, int blockSize) {
+        return (int) (((long) len + blockSize - 1) / blockSize);
+    }
+
+    // Aligned to a byte: the scale if any, a directory of each block's length in bytes as 32-bit ints, then the
+    // blocks. Each block starts over from its own first value, so any one of them can be decoded, or skipped, given
+    // the directory alone.
+    private static void writeBlocks(BitWriter bw, EfficientDeltaValue edv, DeltaEncoding encoding, int blockSize, Values v) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        int[] lengths = encodeBlocks(encoded, edv, encoding, blockSize, v.values, 0, blockCount(v.values.length, blockSize));
+
+        bw.align();
+        if (edv.useScale()) bw.writeBits(v.scale, 32);
+        for (int length : lengths) {
+            bw.writeBits(length, 32);
+        }
+        bw.writeBytes(encoded.toByteArray(), 0, encoded.size());
+    }
+
+    private static Values readBlocks(BitReader br, EfficientDeltaValue edv, DeltaEncoding encoding, int blockSize, int len) throws IOException {
+        int blocks = blockCount(len, blockSize);
+
+        br.align();
+        int scale = edv.useScale() ? br.readBits(32) : 0;
+        int[] lengths = new int[blocks];
+        for (int b = 0; b < blocks; b++) {
+            lengths[b] = br.readBits(32);
+        }
+
+        long[] vals = new long[len];
+        for (int b = 0; b < blocks; b++) {
+            int off = b * blockSize;
+            readSegment(br, edv, encoding, vals, off, Math.min(blockSize, len - off));
+            br.align();
+        }
+
+        return new Values(vals, scale);
+    }
+
+    // Encodes blocks from through to - 1 one after another, returning the length of each in bytes
+    static int[] encodeBlocks(ByteArrayOutputStream out, EfficientDeltaValue edv, DeltaEncoding encoding, int blockSize, long[] vals, int from, int to) throws IOException {
+        BitWriter blockWriter = new BitWriter(out);
+        int[] lengths = new int[to - from];
+        for (int b = from; b < to; b++) {
+            int start = out.size();
+            int off = b * blockSize;
+            writeSegment(blockWriter, edv, encoding, vals, off, Math.min(blockSize, vals.length - off));
+            blockWriter.finish();
+            lengths[b - from] = out.size() - start;
+        }
+        return lengths;
+    }
+
+    // Parts of an unblocked column, each covering about chunkSize values
+    static List<Part> parts(EfficientDeltaValue edv, DeltaEncoding encoding, Values v, int chunkSize) {
+        long[] vals = v.values;
+        int len = vals.length;
+        List<Part> parts = new ArrayList<>();
+
+        switch (encoding) {
+            case DELTA_OF_DELTA: {
+                parts.add(bw -> bw.writeBits(vals[0], edv.getNumInitialBits()));
+                for (int from = 1; from < len; from += chunkSize) {
+                    int start = from;
+                    int end = (int) Math.min(len, (long) from + chunkSize);
+                    long prevDelta = start == 1 ? 0 : vals[start - 1] - vals[start - 2];
+                    parts.add(bw -> writeDeltaOfDeltaRange(bw, vals, start, end, prevDelta));
+                }
+                break;
+            }
+            case PATCHED: {
+                // Chunks hold whole patch blocks
+                int step = Math.max(PATCH_BLOCK, chunkSize / PATCH_BLOCK * PATCH_BLOCK);
+                parts.add(bw -> bw.writeBits(vals[0], edv.getNumInitialBits()));
+                for (int from = 1; from < len; from += step) {
+                    int start = from;
+                    int end = (int) Math.min(len, (long) from + step);
+                    parts.add(bw -> writePatchedRange(bw, vals, start, end));
+                }
+                break;
+            }
+            case XOR:
+                // The window carries from value to value, so the column stays in one piece
+                parts.add(bw -> writeXor(bw, edv, vals, 0, len));
+                break;
+            default: {
+                long[] offsets = new long[Math.max(0, len - 1)];
+                int offsetBits = offsets(vals, 0, len, offsets);
+                long[] packed = offsetBits == 64 ? vals : offsets;
+                parts.add(bw -> {
+                    bw.writeBits(offsetBits, 8);
+                    if (offsetBits != 64) bw.writeBits(vals[0], edv.getNumInitialBits());
+                });
+                for (int from = 0; from < packed.length; from += chunkSize) {
+                    int start = from;
+                    int n = Math.min(chunkSize, packed.length - from);
+                    parts.add(bw -> bw.writePacked(packed, start, n, offsetBits));
+                }
+            }
+        }
+
+        if (edv.useScale()) parts.add(bw -> bw.writeBits(v.scale, 32));
+        return parts;
+    }
+
+    static void writeSegment(BitWriter bw, EfficientDeltaValue edv, DeltaEncoding encoding, long[] vals, int off, int len) throws IOException {
+        switch (encoding) {
+            case DELTA_OF_DELTA:
+                writeDeltaOfDelta(bw, edv, vals, off, len);
+                break;
+            case XOR:
+                writeXor(bw, edv, vals, off, len);
+                break;
+            case PATCHED:
+                writePatched(bw, edv, vals, off, len);
+                break;
+            default:
+                writeOffsets(bw, edv, vals, off, len);
+        }
+    }
+
+    static void readSegment(BitReader br, EfficientDeltaValue edv, DeltaEncoding encoding, long[] vals, int off, int len) throws IOException {
+        switch (encoding) {
+            case DELTA_OF_DELTA:
+                readDeltaOfDelta(br, edv, vals, off, len);
+                break;
+            case XOR:
+                readXor(br, edv, vals, off, len);
+                break;
+            case PATCHED:
+                readPatched(br, edv, vals, off, len);
+                break;
+            default:
+                readOffsets(br, edv, vals, off, len);
+        }
+    }
+
+    // Fills in the offsets and returns the smallest two's complement width holding all of them
+    private static int offsets(long[] vals, int off, int len, long[] offsets) {
+        long folded = 0;
+        for (int i = 0; i < len - 1; i++) {
+            long o = vals[off + i + 1] - vals[off + i];
+            offsets[i] = o;
+            folded |= o ^ (o >> 63);
+        }
+        return BitUtil.signedBits(folded);
+    }
+
+    private static void writeOffsets(BitWriter bw, EfficientDeltaValue edv, long[] vals, int off, int len) throws IOException {
+        // Calculate the offsets
+        long[] offsets = new long[Math.max(0, len - 1)];
+        int offsetBits = offsets(vals, off, len, offsets);
+
+        // Write number of offset bits
+        bw.writeBits(offsetBits, 8);
+
+        if (offsetBits == 64) {
+            bw.writePacked(vals, off, len, 64);
+        } else {
+            // Write the first value
+            bw.writeBits(vals[off], edv.getNumInitialBits());
+
+            // A sign bit followed by offsetBits - 1 bits of (maxOffset + o) for negatives is exactly the low
+            // offsetBits of the offset in two's complement, so the offsets pack as plain fixed-width fields
+            bw.writePacked(offsets, offsetBits);
+        }
+    }
+
+    private static void readOffsets(BitReader br, EfficientDeltaValue edv, long[] vals, int off, int len) throws IOException {
+        int offsetBits = br.readBits(8);
+
+        if (offsetBits == 64) {
+            br.readPacked(vals, off, len, 64);
+        } else {
+            // Read first value
+            vals[off] = br.readBitsLong(edv.getNumInitialBits());
+
+            // Read the offsets in place, then sign extend and sum them
+            br.readPacked(vals, off + 1, len - 1, offsetBits);
+            for (int i = off + 1; i < off + len; i++) {
+                vals[i] = vals[i - 1] + BitUtil.signExtend(vals[i], offsetBits);
+            }
+        }
+    }
+
+    // The first value in full, then for each value the change in its delta from the previous one (taking the
+    // delta before the first as 0): a single 0 bit when unchanged, else 10, 110, 1110 or 1111 followed by the
+    // change in 7, 9, 12 or 64 bits
+    private static void writeDeltaOfDelta(BitWriter bw, EfficientDeltaValue edv, long[] vals, int off, int len) throws IOException {
+        bw.writeBits(vals[off], edv.getNumInitialBits());
+        writeDeltaOfDeltaRange(bw, vals, off + 1, off + len, 0);
+    }
+
+    private static void writeDeltaOfDeltaRange(BitWriter bw, long[] vals, int from, int to, long prevDelta) throws IOException {
+        for (int i = from; i < to; i++) {
+            long delta = vals[i] - vals[i - 1];
+            long dod = delta - prevDelta;
+            prevDelta = delta;
+
+            if (dod == 0) {
+                bw.writeBits(0, 1);
+                continue;
+            }
+
+            int bits = BitUtil.signedBits(dod ^ (dod >> 63));
+            if (bits <= 7) {
+                bw.writeBits((0b10L << 7) | (dod & 0x7F), 9);
+            } else if (bits <= 9) {
+                bw.writeBits((0b110L << 9) | (dod & 0x1FF), 12);
+            } else if (bits <= 12) {
+                bw.writeBits((0b1110L << 12) | (dod & 0xFFF), 16);
+            } else {
+                bw.writeBits(0b1111, 4);
+                bw.writeBits(dod, 64);
+            }
+        }
+    }
+
+    private static void readDeltaOfDelta(BitReader br, EfficientDeltaValue edv, long[] vals, int off, int len) throws IOException {
+        vals[off] = br.readBitsLong(edv.getNumInitialBits());
+
+        long delta = 0;
+        for (int i = off + 1; i < off + len; i++) {
+            int bucket = 0;
+            while (bucket < BUCKET_BITS.length && br.readBits(1) == 1) {
+                bucket++;
+            }
+            if (bucket > 0) {
+                int bits = BUCKET_BITS[bucket - 1];
+                delta += BitUtil.signExtend(br.readBitsLong(bits), bits);
+            }
+            vals[i] = vals[i - 1] + delta;
+        }
+    }
+
+    // The first value in full, then for each value a 0 bit when it repeats the previous one, else a 1 and its XOR
+    // with the previous one. That is 0 and the bits inside the last window when they fit there, otherwise 1, five
+    // bits of leading zeros (at most 31), six bits of length (64 as 0) and the bits between the zeros, which
+    // become the new window.
+    private static void writeXor(BitWriter bw, EfficientDeltaValue edv, long[] vals, int off, int len) throws IOException {
+        int width = edv.getNumInitialBits();
+        long mask = BitUtil.getMaskLong(width);
+        bw.writeBits(vals[off], width);
+
+        int prevLeading = -1;
+        int prevTrailing = 0;
+        for (int i = off + 1; i < off + len; i++) {
+            long x = (vals[i] ^ vals[i - 1]) & mask;
+            if (x == 0) {
+                bw.writeBits(0, 1);
+                continue;
+            }
+
+            int leading = Math.min(31, Long.numberOfLeadingZeros(x) - (64 - width));
+            int trailing = Long.numberOfTrailingZeros(x);
+            if (prevLeading >= 0 && leading >= prevLeading && trailing >= prevTrailing) {
+                bw.writeBits(0b10, 2);
+                bw.writeBits(x >>> prevTrailing, width - prevLeading - prevTrailing);
+            } else {
+                int bits = width - leading - trailing;
+                bw.writeBits((0b11L << 11) | (leading << 6) | (bits & 0x3F), 13);
+                bw.writeBits(x >>> trailing, bits);
+                prevLeading = leading;
+                prevTrailing = trailing;
+            }
+        }
+    }
+
+    private static void readXor(BitReader br, EfficientDeltaValue edv, long[] vals, int off, int len) throws IOException {
+        int width = edv.getNumInitialBits();
+        vals[off] = br.readBitsLong(width);
+
+        int leading = 0;
+        int trailing = 0;
+        for (int i = off + 1; i < off + len; i++) {
+            if (br.readBits(1) == 0) {
+                vals[i] = vals[i - 1];
+                continue;
+            }
+
+            int bits;
+            if (br.readBits(1) == 1) {
+                int control = br.readBits(11);
+                leading = control >>> 6;
+                bits = control & 0x3F;
+                if (bits == 0) bits = 64;
+                trailing = width - leading - bits;
+            } else {
+                bits = width - leading - trailing;
+            }
+            vals[i] = vals[i - 1] ^ (br.readBitsLong(bits) << trailing);
+        }
+    }
+
+    // The first value in full, then the offsets in blocks. Each block holds the zigzagged block minimum behind
+    // a 7-bit length, the 7-bit packing width, an 8-bit patch count and, when there are patches, the 7-bit
+    // width of their high bits. Then come the offsets less the minimum, packed at the width, and the patches:
+    // 7-bit positions with the bits above the width for values that did not fit.
+    private static void writePatched(BitWriter bw, EfficientDeltaValue edv, long[] vals, int off, int len) throws IOException {
+        bw.writeBits(vals[off], edv.getNumInitialBits());
+        writePatchedRange(bw, vals, off + 1, off + len);
+    }
+
+    private static void writePatchedRange(BitWriter bw, long[] vals, int from, int to) throws IOException {
+        long[] block = new long[PATCH_BLOCK];
+        int[] lengths = new int[65];
+        for (int start = from; start < to; start += PATCH_BLOCK) {
+            int n = Math.min(PATCH_BLOCK, to - start);
+
+            long base = Long.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                block[i] = vals[start + i] - vals[start + i - 1];
+                base = Math.min(base, block[i]);
+            }
+
+            // Count how many of the rebased offsets need each bit length
+            Arrays.fill(lengths, 0);
+            for (int i = 0; i < n; i++) {
+                block[i] -= base;
+                lengths[64 - Long.numberOfLeadingZeros(block[i])]++;
+            }
+            int maxBits = 64;
+            while (maxBits > 0 && lengths[maxBits] == 0) maxBits--;
+
+            // Pick the width where packing plus patching is cheapest
+            int width = maxBits;
+            long best = (long) n * maxBits;
+            int patches = 0;
+            int over = 0;
+            for (int w = maxBits - 1; w >= 0; w--) {
+                over += lengths[w + 1];
+                long cost = (long) n * w + (long) over * (PATCH_INDEX_BITS + maxBits - w) + PATCH_INDEX_BITS;
+                if (cost < best) {
+                    best = cost;
+                    width = w;
+                    patches = over;
+                }
+            }
+
+            long zigzag = VarInt.encodeZigZag(base);
+            int baseBits = 64 - Long.numberOfLeadingZeros(zigzag);
+            bw.writeBits(baseBits, 7);
+            bw.writeBits(zigzag, baseBits);
+            bw.writeBits(width, 7);
+            bw.writeBits(patches, 8);
+            if (patches > 0) bw.writeBits(maxBits - width, 7);
+
+            bw.writePacked(block, 0, n, width);
+            if (patches > 0) {
+                for (int i = 0; i < n; i++) {
+                    long high = width == 64 ? 0 : block[i] >>> width;
+                    if (high != 0) {
+                        bw.writeBits(i, PATCH_INDEX_BITS);
+                        bw.writeBits(high, maxBits - width);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void readPatched(BitReader br, EfficientDeltaValue edv, long[] vals, int off, int len) throws IOException {
+        vals[off] = br.readBitsLong(edv.getNumInitialBits());
+
+        long[] block = new long[PATCH_BLOCK];
+        for (int start = off + 1; start < off + len; start += PATCH_BLOCK) {
+            int n = Math.min(PATCH_BLOCK, off + len - start);
+
+            long base = VarInt.decodeZigZag(br.readBitsLong(br.readBits(7)));
+            int width = br.readBits(7);
+            int patches = br.readBits(8);
+            int highBits = patches > 0 ? br.readBits(7) : 0;
+
+            br.readPacked(block, 0, n, width);
+            for (int p = 0; p < patches; p++) {
+                int i = br.readBits(PATCH_INDEX_BITS);
+                block[i] |= br.readBitsLong(highBits) << width;
+            }
+
+            for (int i = 0; i < n; i++) {
+                vals[start + i] = vals[start + i - 1] + block[i] + base;
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.rcpooley.effstorage.core;
+
+public enum DeltaEncoding {
+    // Differences between neighbours, all packed at the smallest width that fits the largest
+    OFFSET,
+
+    // Differences between neighbouring differences in variable-width buckets, so regularly spaced values
+    // such as sampled timestamps cost about one bit each
+    DELTA_OF_DELTA,
+
+    // Each value XORed with the one before it, keeping only the bits between the leading and trailing zeros.
+    // Meant for double and float fields, which are taken by their raw bits, so every value round trips exactly.
+    XOR,
+
+    // Offsets in blocks of 128, each packed against the block's smallest offset at the width that is cheapest
+    // overall, with the few that do not fit stored separately as patches
+    PATCHED
+}
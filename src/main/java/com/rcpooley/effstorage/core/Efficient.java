@@ -6,4 +6,18 @@ import java.lang.annotation.RetentionPolicy;
 @Retention(RetentionPolicy.RUNTIME)
 public @interface Efficient {
     boolean storeByDelta() default false;
+
+    boolean compiled() default false;
+
+    // How a storeByDelta field's column is encoded
+    DeltaEncoding deltaEncoding() default DeltaEncoding.OFFSET;
+
+    // When positive, a storeByDelta column is cut into independently decodable blocks of this many values
+    int blockSize() default 0;
+
+    // Write a short, char, int or long field (or its boxed form) as a LEB128 varint, ZigZag-mapped when signed
+    boolean varint() default false;
+
+    // On a class, write arrays of it a field at a time: each field's values together in a column of their own
+    boolean columnar() default false;
 }
@@ -0,0 +1,72 @@
+package com.rcpooley.effstorage.core;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Walks the chunks written by an EfficientArrayWriter, decoding the next one, storeByDelta columns and all, once the
+// last is used up. The stream ends at the empty array closing it, or at the end of input between chunks, so a
+// single serialized array reads as one chunk.
+final class EfficientArrayReader<T> implements Iterator<T> {
+
+    private final Class<?> arrayType;
+
+    private final BufferedInputStream is;
+
+    private final EfficientOptions options;
+
+    private T[] chunk;
+
+    private int pos;
+
+    private boolean done;
+
+    EfficientArrayReader(Class<T> type, BufferedInputStream is, EfficientOptions options) {
+        this.arrayType = Array.newInstance(type, 0).getClass();
+        this.is = is;
+        this.options = options;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!done && (chunk == null || pos == chunk.length)) {
+            chunk = null;
+            readChunk();
+        }
+        return !done;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return chunk[pos++];
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readChunk() {
+        try {
+            is.mark(1);
+            if (is.read() < 0) {
+                done = true;
+                return;
+            }
+            is.reset();
+
+            // Each chunk is a payload of its own, string dictionary included
+            T[] next = (T[]) EfficientStorage.read(arrayType, new EfficientInputStream(is, options));
+            if (next.length == 0) {
+                done = true;
+            } else {
+                chunk = next;
+                pos = 0;
+            }
+        } catch (IOException | EfficientException e) {
+            done = true;
+            throw new IllegalStateException("Failed to read chunk", e);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.rcpooley.effstorage.core;
+
+import com.rcpooley.effstorage.bitio.BitReader;
+import com.rcpooley.effstorage.core.ClassPlan.FieldData;
+import com.rcpooley.effstorage.core.EfficientDeltaValue.Values;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+
+// Reads single elements, or runs of them, out of an object array serialized with an element index, decoding only
+// from the nearest indexed element on. storeByDelta columns are read a block at a time through their directory, so
+// every storeByDelta field needs a blockSize: an unblocked column can only be found by decoding all of it.
+// A compressed payload is read through its blocks, decompressing only those the bytes asked for fall in.
+public final class EfficientArrayView<T> {
+
+    // Where a storeByDelta column's values are found
+    private static final class DeltaColumnView {
+
+        final FieldData data;
+
+        // The position and length of each block in the payload, and the column's scale
+        int[] blockStarts;
+
+        int[] blockLengths;
+
+        int scale;
+
+        DeltaColumnView(FieldData data) {
+            this.data = data;
+        }
+    }
+
+    private final Class<T> type;
+
+    // The payload, when it isn't compressed
+    private final ByteBuffer buffer;
+
+    // The payload's blocks, when it is
+    private final CompressedBlocks blocks;
+
+    private final long size;
+
+    private final EfficientOptions options;
+
+    private final int length;
+
+    private final int interval;
+
+    private final int[] offsets;
+
+    private final int elementsStart;
+
+    private final DeltaColumnView[] columns;
+
+    public EfficientArrayView(Class<T> type, byte[] data, EfficientOptions options) throws EfficientException {
+        this(type, ByteBuffer.wrap(data), options);
+    }
+
+    // Views the array starting at the buffer's position; the buffer itself is left untouched
+    public EfficientArrayView(Class<T> type, ByteBuffer buffer, EfficientOptions options) throws EfficientException {
+        this.type = type;
+        this.options = options;
+        this.interval = options.getElementIndexInterval();
+
+        ClassPlan plan = EfficientStorage.checkedPlan(type);
+        if (interval <= 0) {
+            throw new EfficientException("Random access needs an array written with an element index");
+        }
+        if (type.isPrimitive() || plan.columnar) {
+            throw new EfficientException("Random access needs a row-layout object array, got " + type.getName());
+        }
+        for (FieldData data : plan.deltaFields) {
+            if (data.blockSize <= 0) {
+                throw new EfficientException("Random access needs a blockSize on storeByDelta field " + data.field.getName() + " in class " + type.getName());
+            }
+        }
+
+        if (options.getCodec() == null) {
+            this.buffer = buffer.slice();
+            this.blocks = null;
+            this.size = this.buffer.remaining();
+        } else {
+            this.buffer = null;
+            this.blocks = CompressedBlocks.open(buffer, options);
+            this.size = blocks.length();
+        }
+
+        try {
+            EfficientInputStream dis = new EfficientInputStream(range(0, (int) Math.min(5, size)), options);
+            this.length = EfficientInputStream.readLength(dis);
+            int start = dis.buffer.position();
+            if (length == 0) {
+                this.offsets = new int[]{0};
+                this.elementsStart = start;
+                this.columns = new DeltaColumnView[0];
+                return;
+            }
+
+            int indexSize = 4 * (DeltaColumn.blockCount(length, interval) + 1);
+            this.offsets = EfficientStorage.readElementIndex(new EfficientInputStream(range(start, indexSize), options), length, interval);
+            this.elementsStart = start + indexSize;
+            this.columns = findDeltaColumns(plan, elementsStart + offsets[offsets.length - 1]);
+        } catch (EfficientIOException e) {
+            throw e.getCause();
+        } catch (IOException e) {
+            throw new EfficientException(e);
+        }
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public T get(int index) throws EfficientException {
+        return get(index, index + 1)[0];
+    }
+
+    // The elements from through to - 1
+    @SuppressWarnings("unchecked")
+    public T[] get(int from, int to) throws EfficientException {
+        if (from < 0 || to > length || from > to) {
+            throw new IndexOutOfBoundsException("Range [" + from + ", " + to + ") out of bounds for length " + length);
+        }
+
+        T[] elements = (T[]) Array.newInstance(type, to - from);
+        if (elements.length == 0) return elements;
+
+        try {
+            // Read on from the indexed element at or before from, starting the string dictionary over at each one
+            int block = from / interval;
+            int endBlock = Math.min(offsets.length - 1, (to - 1) / interval + 1);
+            ByteBuffer slice = range(elementsStart + offsets[block], offsets[endBlock] - offsets[block]);
+            EfficientInputStream dis = new EfficientInputStream(slice, options);
+            for (int i = block * interval; i < to; i++) {
+                if (i % interval == 0) dis.resetStrings();
+                Object element = EfficientStorage.readValue(type, dis);
+                if (i >= from) elements[i - from] = (T) element;
+            }
+
+            for (DeltaColumnView column : columns) {
+                EfficientStorage.setDeltaValues(column.data, elements, values(column, from, to));
+            }
+        } catch (EfficientIOException e) {
+            throw e.getCause();
+        } catch (IOException | IllegalStateException e) {
+            throw new EfficientException(e);
+        }
+        return elements;
+    }
+
+    // Finds the storeByDelta columns that follow the elements, laid out as DeltaColumn writes blocked columns: each
+    // starts on a byte boundary with its scale and block directory, then the blocks
+    private DeltaColumnView[] findDeltaColumns(ClassPlan plan, int start) throws IOException {
+        FieldData[] deltaFields = plan.deltaFields;
+        DeltaColumnView[] views = new DeltaColumnView[deltaFields.length];
+
+        int pos = start;
+        for (int c = 0; c < deltaFields.length; c++) {
+            FieldData data = deltaFields[c];
+            if (data.deltaValue == null) {
+                throw new EfficientIOException(new EfficientException("Field " + data.field.getName() + " in class " + type.getName() + " is marked as storeByDelta, but is not a recognized delta type"));
+            }
+
+            DeltaColumnView view = new DeltaColumnView(data);
+            int blocks = DeltaColumn.blockCount(length, data.blockSize);
+            boolean scaled = data.deltaValue.useScale();
+            int headerSize = 4 * (blocks + (scaled ? 1 : 0));
+            BitReader br = new BitReader(range(pos, headerSize));
+            view.scale = scaled ? br.readBits(32) : 0;
+
+            pos += headerSize;
+            view.blockStarts = new int[blocks];
+            view.blockLengths = new int[blocks];
+            for (int b = 0; b < blocks; b++) {
+                int len = br.readBits(32);
+                if (len < 0) throw new IOException("Negative block length " + len);
+                view.blockStarts[b] = pos;
+                view.blockLengths[b] = len;
+                pos += len;
+            }
+            views[c] = view;
+        }
+        return views;
+    }
+
+    private Values values(DeltaColumnView column, int from, int to) throws IOException {
+        long[] vals = new long[to - from];
+
+        // Decode each block the range touches
+        int blockSize = column.data.blockSize;
+        long[] block = new long[Math.min(blockSize, length)];
+        for (int b = from / blockSize; b * blockSize < to; b++) {
+            int off = b * blockSize;
+            int n = Math.min(blockSize, length - off);
+            BitReader br = new BitReader(range(column.blockStarts[b], column.blockLengths[b]));
+            DeltaColumn.readSegment(br, column.data.deltaValue, column.data.deltaEncoding, block, 0, n);
+
+            int start = Math.max(from, off);
+            int end = Math.min(to, off + n);
+            System.arraycopy(block, start - off, vals, start - from, end - start);
+        }
+        return new Values(vals, column.scale);
+    }
+
+    // The len bytes of the payload from position on, decompressing only the blocks they fall in
+    private ByteBuffer range(long position, int len) throws IOException {
+        if (position < 0 || len < 0 || position + len > size) {
+            throw new EOFException("Array ends before byte " + (position + len));
+        }
+
+        if (blocks == null) {
+            ByteBuffer slice = buffer.duplicate();
+            slice.position((int) position);
+            slice.limit((int) position + len);
+            return slice.slice();
+        }
+
+        byte[] bytes = new byte[len];
+        try {
+            blocks.read(position, bytes, 0, len);
+        } catch (EfficientException e) {
+            throw new EfficientIOException(e);
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+}
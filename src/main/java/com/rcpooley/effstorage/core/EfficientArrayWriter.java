@@ -0,0 +1,109 @@
+package com.rcpooley.effstorage.core;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+// Writes an array of unknown length to a stream as elements arrive. Elements are held until a chunk's worth has
+// gathered, then written as an array payload of their own, exactly as serialize writes one, storeByDelta columns
+// and all. An empty array ends the stream. Memory stays bounded by the chunk size however many elements go through.
+public final class EfficientArrayWriter<T> implements Closeable, Flushable {
+
+    private final OutputStream os;
+
+    private final EfficientOptions options;
+
+    private final T[] chunk;
+
+    private int size;
+
+    // Whether the empty array ending the stream has been written, and whether it has been flushed too
+    private boolean ended;
+
+    private boolean closed;
+
+    // Set when a chunk or the end failed partway, leaving the stream holding part of a payload
+    private boolean failed;
+
+    @SuppressWarnings("unchecked")
+    EfficientArrayWriter(Class<T> type, OutputStream os, EfficientOptions options) {
+        this.os = os;
+        this.options = options;
+        this.chunk = (T[]) Array.newInstance(type, options.getChunkSize());
+    }
+
+    public void write(T element) throws EfficientException {
+        checkUsable();
+        if (ended) {
+            throw new IllegalStateException("Writer is closed");
+        }
+        if (element == null) {
+            throw new EfficientException("Tried to serialize null object");
+        }
+
+        chunk[size++] = element;
+        if (size == chunk.length) {
+            writeChunk();
+        }
+    }
+
+    // Writes out the elements held so far as a chunk of their own and flushes the stream
+    @Override
+    public void flush() throws IOException {
+        checkUsable();
+        try {
+            if (size > 0) writeChunk();
+        } catch (EfficientException e) {
+            throw new IOException(e);
+        }
+        os.flush();
+    }
+
+    // Writes what is left and the empty array ending the stream. The stream itself is left open. The writer only
+    // counts as closed once the end is flushed, so a close whose flush failed can be retried; a close that failed
+    // writing can't, since part of a payload may already be in the stream.
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        checkUsable();
+        try {
+            if (size > 0) writeChunk();
+            if (!ended) {
+                writePayload(Array.newInstance(chunk.getClass().getComponentType(), 0));
+                ended = true;
+            }
+        } catch (EfficientException e) {
+            throw new IOException(e);
+        }
+        os.flush();
+        closed = true;
+    }
+
+    private void writeChunk() throws EfficientException {
+        T[] elements = size == chunk.length ? chunk : Arrays.copyOf(chunk, size);
+
+        // Each chunk is a payload of its own, string dictionary included
+        writePayload(elements);
+
+        Arrays.fill(chunk, 0, size, null);
+        size = 0;
+    }
+
+    private void writePayload(Object payload) throws EfficientException {
+        try {
+            EfficientStorage.write(payload, new EfficientOutputStream(os, options));
+        } catch (EfficientException | RuntimeException e) {
+            failed = true;
+            throw e;
+        }
+    }
+
+    private void checkUsable() {
+        if (failed) {
+            throw new IllegalStateException("Writer failed writing a chunk; the stream is incomplete");
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package com.rcpooley.effstorage.core;
+
+import com.rcpooley.effstorage.bitio.ByteBufferInputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// A file of independently serialized blocks, each a record or a chunk of an array, read back by memory mapping the
+// block asked for. The file only ever grows: a writer appends blocks, then on commit appends a footer listing just
+// the blocks added since the last commit, chained to the footer before it, and points the header at it. Readers see
+// the blocks of the last commit made before they opened the file.
+//
+// The header holds two slots, and commits take turns writing them, so the slot of the commit before is always intact:
+// a reader that finds a slot half written, or a crash in the middle of writing one, falls back on the other.
+//
+// Header: magic, version, then two slots of a sequence number, the footer's position, length and CRC32, and the
+// slot's own CRC32. Footer: the previous footer's position, length and CRC32, the total block count, the number of
+// blocks it lists, then for each its position and length, its element count and the name of its class.
+public final class EfficientFile implements Closeable {
+
+    private static final int MAGIC = 0x45464653;
+
+    private static final int VERSION = 1;
+
+    private static final int SLOT_SIZE = 28;
+
+    private static final int SLOTS_OFFSET = 8;
+
+    private static final int HEADER_SIZE = SLOTS_OFFSET + 2 * SLOT_SIZE;
+
+    private final FileChannel channel;
+
+    private final EfficientOptions options;
+
+    private final List<Block> blocks;
+
+    private static final class Block {
+
+        final long position;
+
+        final int length;
+
+        final int count;
+
+        final String type;
+
+        Block(long position, int length, int count, String type) {
+            this.position = position;
+            this.length = length;
+            this.count = count;
+            this.type = type;
+        }
+    }
+
+    private EfficientFile(FileChannel channel, EfficientOptions options, List<Block> blocks) {
+        this.channel = channel;
+        this.options = options;
+        this.blocks = blocks;
+    }
+
+    public static EfficientFile open(Path path) throws EfficientException {
+        return open(path, new EfficientOptions());
+    }
+
+    // The options must match the ones the blocks were written with
+    public static EfficientFile open(Path path, EfficientOptions options) throws EfficientException {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            return new EfficientFile(channel, options, readBlocks(channel, readCommit(channel)));
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw new EfficientException(e);
+        } catch (EfficientException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    // Opens the file for appending, creating it if need be. Only one writer may have a file open at a time.
+    public static Writer append(Path path) throws EfficientException {
+        return append(path, new EfficientOptions());
+    }
+
+    public static Writer append(Path path, EfficientOptions options) throws EfficientException {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                throw new EfficientException("File " + path + " is already open for writing");
+            }
+
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION);
+                header.put(new Commit(0, 0, 0, 0).slot()).put(new Commit(0, 0, 0, 0).slot());
+                header.flip();
+                writeFully(channel, header, 0);
+                channel.force(true);
+            }
+
+            Commit commit = readCommit(channel);
+            return new Writer(channel, options, readBlocks(channel, commit), commit);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw new EfficientException(e);
+        } catch (EfficientException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    public int blockCount() {
+        return blocks.size();
+    }
+
+    // How many elements block i holds: the array length for an array chunk, 1 for a single record
+    public int getCount(int block) {
+        return blocks.get(block).count;
+    }
+
+    public long getTotalCount() {
+        long total = 0;
+        for (Block block : blocks) {
+            total += block.count;
+        }
+        return total;
+    }
+
+    public String getTypeName(int block) {
+        return blocks.get(block).type;
+    }
+
+    public Object read(int block) throws EfficientException {
+        String name = blocks.get(block).type;
+        Class<?> type;
+        try {
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            type = Class.forName(name, true, loader != null ? loader : EfficientFile.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new EfficientException("Cannot load class " + name + " of block " + block);
+        }
+        return read(block, type);
+    }
+
+    public Object read(int block, Class<?> type) throws EfficientException {
+        return EfficientStorage.deserialize(type, map(block), options);
+    }
+
+    // Random access into an array chunk written with an element index; type is the element class
+    public <T> EfficientArrayView<T> view(int block, Class<T> type) throws EfficientException {
+        return new EfficientArrayView<>(type, map(block), options);
+    }
+
+    // Mappings stay valid once the file is closed, so views and buffers read from the file can outlive it
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer map(int index) throws EfficientException {
+        Block block = blocks.get(index);
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, block.position, block.length);
+        } catch (IOException e) {
+            throw new EfficientException(e);
+        }
+    }
+
+    // A commit as a header slot records it: its footer, or no footer at all for an empty file
+    private static final class Commit {
+
+        final long sequence;
+
+        final long position;
+
+        final int length;
+
+        final int crc;
+
+        Commit(long sequence, long position, int length, int crc) {
+            this.sequence = sequence;
+            this.position = position;
+            this.length = length;
+            this.crc = crc;
+        }
+
+        ByteBuffer slot() {
+            ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+            slot.putLong(sequence).putLong(position).putInt(length).putInt(crc);
+            slot.putInt(crc(slot.array(), SLOT_SIZE - 4));
+            slot.flip();
+            return slot;
+        }
+
+        // Where this commit's slot sits in the header
+        long slotPosition() {
+            return SLOTS_OFFSET + (sequence & 1) * SLOT_SIZE;
+        }
+    }
+
+    // The newest commit whose slot and footer both check out
+    private static Commit readCommit(FileChannel channel) throws IOException, EfficientException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, 0, "Not an efficient file: too short");
+        if (header.getInt(0) != MAGIC) {
+            throw new EfficientException("Not an efficient file");
+        }
+        if (header.getInt(4) != VERSION) {
+            throw new EfficientException("Unsupported efficient file version " + header.getInt(4));
+        }
+
+        List<Commit> commits = new ArrayList<>(2);
+        for (int i = 0; i < 2; i++) {
+            int offset = SLOTS_OFFSET + i * SLOT_SIZE;
+            if (crc(header.array(), offset, SLOT_SIZE - 4) != header.getInt(offset + SLOT_SIZE - 4)) continue;
+            Commit commit = new Commit(header.getLong(offset), header.getLong(offset + 8), header.getInt(offset + 16), header.getInt(offset + 20));
+            if (commits.isEmpty() || commit.sequence > commits.get(0).sequence) {
+                commits.add(0, commit);
+            } else {
+                commits.add(commit);
+            }
+        }
+
+        for (Commit commit : commits) {
+            if (commit.position == 0 || readFooter(channel, commit.position, commit.length, commit.crc) != null) {
+                return commit;
+            }
+        }
+        throw new EfficientException("Corrupt efficient file header");
+    }
+
+    // Every block up to the given commit, gathered along the chain of footers
+    private static List<Block> readBlocks(FileChannel channel, Commit commit) throws IOException, EfficientException {
+        List<List<Block>> footers = new ArrayList<>();
+        long position = commit.position;
+        int length = commit.length;
+        int crc = commit.crc;
+        int total = -1;
+        while (position != 0) {
+            ByteBuffer footer = readFooter(channel, position, length, crc);
+            if (footer == null) {
+                throw new EfficientException("Corrupt efficient file footer");
+            }
+
+            DataInputStream dis = new DataInputStream(new ByteBufferInputStream(footer));
+            position = dis.readLong();
+            length = dis.readInt();
+            crc = dis.readInt();
+            if (total < 0) total = dis.readInt();
+            else dis.readInt();
+            int count = dis.readInt();
+            if (count < 0) {
+                throw new EfficientException("Corrupt efficient file footer");
+            }
+            List<Block> blocks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                blocks.add(new Block(dis.readLong(), dis.readInt(), dis.readInt(), dis.readUTF()));
+            }
+            footers.add(blocks);
+        }
+
+        List<Block> blocks = new ArrayList<>(Math.max(total, 0));
+        for (int i = footers.size() - 1; i >= 0; i--) {
+            blocks.addAll(footers.get(i));
+        }
+        if (total >= 0 && blocks.size() != total) {
+            throw new EfficientException("Corrupt efficient file footer");
+        }
+        return blocks;
+    }
+
+    // The footer at position, or null if it doesn't match its CRC
+    private static ByteBuffer readFooter(FileChannel channel, long position, int length, int crc) throws IOException, EfficientException {
+        if (position < HEADER_SIZE || length < 0 || position > channel.size() - length) {
+            return null;
+        }
+
+        ByteBuffer footer = ByteBuffer.allocate(length);
+        readFully(channel, footer, position, "Corrupt efficient file footer");
+        footer.flip();
+        return crc(footer.array(), 0, length) == crc ? footer : null;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position, String error) throws IOException, EfficientException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new EfficientException(error);
+            }
+        }
+    }
+
+    private static int crc(byte[] bytes, int length) {
+        return crc(bytes, 0, length);
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Already failing
+        }
+    }
+
+    // Appends blocks to an efficient file. Blocks become visible to readers opened after the next commit.
+    public static final class Writer implements Closeable {
+
+        private final FileChannel channel;
+
+        private final EfficientOptions options;
+
+        private final List<Block> blocks;
+
+        private int committed;
+
+        private Commit last;
+
+        private Writer(FileChannel channel, EfficientOptions options, List<Block> blocks, Commit last) {
+            this.channel = channel;
+            this.options = options;
+            this.blocks = blocks;
+            this.committed = blocks.size();
+            this.last = last;
+        }
+
+        // Writes obj as a block of its own after everything already in the file, returning the block's index
+        public int append(Object obj) throws EfficientException {
+            byte[] data = EfficientStorage.serialize(obj, options);
+            int count = obj.getClass().isArray() ? Array.getLength(obj) : 1;
+            try {
+                long position = channel.size();
+                writeFully(channel, ByteBuffer.wrap(data), position);
+                blocks.add(new Block(position, data.length, count, obj.getClass().getName()));
+            } catch (IOException e) {
+                throw new EfficientException(e);
+            }
+            return blocks.size() - 1;
+        }
+
+        public int blockCount() {
+            return blocks.size();
+        }
+
+        // Makes the blocks appended so far durable and visible: a footer listing them goes after them, and only once
+        // it is on disk is the header slot the last commit didn't use pointed at it
+        public void commit() throws EfficientException {
+            if (committed == blocks.size()) return;
+
+            try {
+                ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                DataOutputStream dos = new DataOutputStream(encoded);
+                dos.writeLong(last.position);
+                dos.writeInt(last.length);
+                dos.writeInt(last.crc);
+                dos.writeInt(blocks.size());
+                dos.writeInt(blocks.size() - committed);
+                for (Block block : blocks.subList(committed, blocks.size())) {
+                    dos.writeLong(block.position);
+                    dos.writeInt(block.length);
+                    dos.writeInt(block.count);
+                    dos.writeUTF(block.type);
+                }
+                byte[] footer = encoded.toByteArray();
+
+                long position = channel.size();
+                writeFully(channel, ByteBuffer.wrap(footer), position);
+                channel.force(false);
+
+                Commit commit = new Commit(last.sequence + 1, position, footer.length, crc(footer, footer.length));
+                writeFully(channel, commit.slot(), commit.slotPosition());
+                channel.force(false);
+                last = commit;
+            } catch (IOException e) {
+                throw new EfficientException(e);
+            }
+            committed = blocks.size();
+        }
+
+        // Commits and releases the file
+        @Override
+        public void close() throws IOException {
+            try {
+                commit();
+            } catch (EfficientException e) {
+                throw new IOException(e);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
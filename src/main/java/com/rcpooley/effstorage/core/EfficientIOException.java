@@ -0,0 +1,17 @@
+package com.rcpooley.effstorage.core;
+
+import java.io.IOException;
+
+class EfficientIOException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    EfficientIOException(EfficientException e) {
+        super(e);
+    }
+
+    @Override
+    public synchronized EfficientException getCause() {
+        return (EfficientException) super.getCause();
+    }
+}
@@ -0,0 +1,133 @@
+package com.rcpooley.effstorage.core;
+
+import com.rcpooley.effstorage.bitio.BitReader;
+import com.rcpooley.effstorage.bitio.ByteBufferInputStream;
+import com.rcpooley.effstorage.bitio.VarInt;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// The stream handed through a deserialize call. When the payload sits in a ByteBuffer it is kept at hand so
+// bit-packed sections can be decoded from the buffer itself.
+class EfficientInputStream extends DataInputStream {
+
+    final ByteBuffer buffer;
+
+    final EfficientOptions options;
+
+    // The fields to read of the columnar array at the top of the payload, or null for all of them
+    Projection projection;
+
+    // Set by deserializeInto: values already in place are filled in rather than replaced
+    boolean reuse;
+
+    private byte[] scratch;
+
+    private List<String> strings;
+
+    EfficientInputStream(InputStream in, EfficientOptions options) {
+        super(in);
+        this.buffer = null;
+        this.options = options;
+    }
+
+    EfficientInputStream(ByteBuffer buffer, EfficientOptions options) {
+        super(new ByteBufferInputStream(buffer));
+        this.buffer = buffer;
+        this.options = options;
+    }
+
+    byte[] scratch(int size) {
+        if (scratch == null || scratch.length < size) {
+            scratch = new byte[Math.max(size, 256)];
+        }
+        return scratch;
+    }
+
+    List<String> strings() {
+        if (strings == null) strings = new ArrayList<>();
+        return strings;
+    }
+
+    static EfficientOptions options(DataInputStream dis) {
+        return dis instanceof EfficientInputStream ? ((EfficientInputStream) dis).options : null;
+    }
+
+    void resetStrings() {
+        if (strings != null) strings.clear();
+    }
+
+    // Hands out the next length-prefixed column as a stream of its own, with its own string dictionary
+    static EfficientInputStream column(DataInputStream dis, EfficientOptions options) throws IOException {
+        return slice(dis, readLength(dis), options);
+    }
+
+    // Hands out the next len bytes as a stream of their own, with their own string dictionary
+    static EfficientInputStream slice(DataInputStream dis, int len, EfficientOptions options) throws IOException {
+        ByteBuffer parent = dis instanceof EfficientInputStream ? ((EfficientInputStream) dis).buffer : null;
+        EfficientInputStream slice;
+        if (parent != null) {
+            if (parent.remaining() < len) throw new EOFException();
+            ByteBuffer column = parent.slice();
+            column.limit(len);
+            parent.position(parent.position() + len);
+            slice = new EfficientInputStream(column, options);
+        } else {
+            byte[] bytes = new byte[len];
+            dis.readFully(bytes);
+            slice = new EfficientInputStream(ByteBuffer.wrap(bytes), options);
+        }
+        slice.reuse = reuse(dis);
+        return slice;
+    }
+
+    static boolean reuse(DataInputStream dis) {
+        return dis instanceof EfficientInputStream && ((EfficientInputStream) dis).reuse;
+    }
+
+    static void skipColumn(DataInputStream dis) throws IOException {
+        int len = readLength(dis);
+        ByteBuffer buffer = dis instanceof EfficientInputStream ? ((EfficientInputStream) dis).buffer : null;
+        if (buffer != null) {
+            if (buffer.remaining() < len) throw new EOFException();
+            buffer.position(buffer.position() + len);
+            return;
+        }
+
+        while (len > 0) {
+            int n = dis.skipBytes(len);
+            if (n <= 0) {
+                // skipBytes gives up at the end of the stream and may give up early before it
+                dis.readByte();
+                n = 1;
+            }
+            len -= n;
+        }
+    }
+
+    static BitReader newBitReader(DataInputStream dis) {
+        if (dis instanceof EfficientInputStream) {
+            ByteBuffer buffer = ((EfficientInputStream) dis).buffer;
+            if (buffer != null) return new BitReader(buffer);
+        }
+        return new BitReader(dis);
+    }
+
+    static int readLength(DataInputStream dis) throws IOException {
+        int len;
+        if (dis instanceof EfficientInputStream && ((EfficientInputStream) dis).options.useVarintLengths()) {
+            len = VarInt.readUnsignedInt(dis);
+        } else {
+            len = dis.readInt();
+        }
+        if (len < 0) {
+            throw new IOException("Negative length " + len);
+        }
+        return len;
+    }
+}
@@ -0,0 +1,157 @@
+package com.rcpooley.effstorage.core;
+
+import java.util.concurrent.Executor;
+
+// Settings for a single serialize or deserialize call. The format is not self-describing, so data must be read
+// back with the same options it was written with.
+public class EfficientOptions {
+
+    private boolean varintLengths;
+
+    private boolean stringDictionary;
+
+    private int elementIndex;
+
+    private int chunkSize = 8192;
+
+    private InstancePool instancePool;
+
+    private Executor executor;
+
+    private int parallelThreshold = 8192;
+
+    private int parallelChunkSize = 1 << 16;
+
+    private Codec codec;
+
+    private int compressionBlockSize = 1 << 16;
+
+    // Write array and string lengths as varints instead of fixed four byte ints
+    public EfficientOptions varintLengths(boolean varintLengths) {
+        this.varintLengths = varintLengths;
+        return this;
+    }
+
+    public boolean useVarintLengths() {
+        return varintLengths;
+    }
+
+    // Write each distinct string once per payload and refer back to it by index afterwards
+    public EfficientOptions stringDictionary(boolean stringDictionary) {
+        this.stringDictionary = stringDictionary;
+        return this;
+    }
+
+    public boolean useStringDictionary() {
+        return stringDictionary;
+    }
+
+    // Precede the elements of row-layout object arrays with the byte offset of every interval-th one, so an
+    // EfficientArrayView can start reading at any of them. Zero leaves the index out.
+    public EfficientOptions elementIndex(int interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("Negative element index interval " + interval);
+        }
+        this.elementIndex = interval;
+        return this;
+    }
+
+    public int getElementIndexInterval() {
+        return elementIndex;
+    }
+
+    // How many elements an EfficientArrayWriter holds before writing them out
+    public EfficientOptions chunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive, got " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    // Take the instances deserialize fills in from this pool, constructing them only when it comes up empty
+    public EfficientOptions instancePool(InstancePool instancePool) {
+        this.instancePool = instancePool;
+        return this;
+    }
+
+    public InstancePool getInstancePool() {
+        return instancePool;
+    }
+
+    // Encode and decode the storeByDelta columns of object arrays on this executor. The bytes written are the same
+    // as without one.
+    public EfficientOptions executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    // Arrays shorter than this are handled on the calling thread alone
+    public EfficientOptions parallelThreshold(int parallelThreshold) {
+        if (parallelThreshold < 0) {
+            throw new IllegalArgumentException("Negative parallel threshold " + parallelThreshold);
+        }
+        this.parallelThreshold = parallelThreshold;
+        return this;
+    }
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    // About how many values of a column each task takes on
+    public EfficientOptions parallelChunkSize(int parallelChunkSize) {
+        if (parallelChunkSize <= 0) {
+            throw new IllegalArgumentException("Parallel chunk size must be positive, got " + parallelChunkSize);
+        }
+        this.parallelChunkSize = parallelChunkSize;
+        return this;
+    }
+
+    public int getParallelChunkSize() {
+        return parallelChunkSize;
+    }
+
+    // Compress each payload in independent blocks with this codec, or leave payloads as they are when null
+    public EfficientOptions codec(Codec codec) {
+        if (codec != null) {
+            // The id is written as a single byte
+            int id = codec.id();
+            boolean builtIn = codec instanceof NoCodec || codec instanceof DeflateCodec;
+            if (id < 0 || id > 255 || (id < 16 && !builtIn)) {
+                throw new IllegalArgumentException("Codec id must be from 16 to 255, got " + id);
+            }
+        }
+        this.codec = codec;
+        return this;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    // How many bytes of the payload go into each compressed block
+    public EfficientOptions compressionBlockSize(int compressionBlockSize) {
+        if (compressionBlockSize <= 0) {
+            throw new IllegalArgumentException("Compression block size must be positive, got " + compressionBlockSize);
+        }
+        this.compressionBlockSize = compressionBlockSize;
+        return this;
+    }
+
+    public int getCompressionBlockSize() {
+        return compressionBlockSize;
+    }
+
+    boolean parallel(int len) {
+        return executor != null && len >= parallelThreshold;
+    }
+}
@@ -0,0 +1,53 @@
+package com.rcpooley.effstorage.core;
+
+import com.rcpooley.effstorage.bitio.VarInt;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+// The stream handed through a serialize call, carrying the options it was started with and the state shared by
+// everything written in that call
+class EfficientOutputStream extends DataOutputStream {
+
+    final EfficientOptions options;
+
+    private byte[] scratch;
+
+    private Map<String, Integer> strings;
+
+    EfficientOutputStream(OutputStream out, EfficientOptions options) {
+        super(out);
+        this.options = options;
+    }
+
+    byte[] scratch(int size) {
+        if (scratch == null || scratch.length < size) {
+            scratch = new byte[Math.max(size, 256)];
+        }
+        return scratch;
+    }
+
+    Map<String, Integer> strings() {
+        if (strings == null) strings = new HashMap<>();
+        return strings;
+    }
+
+    void resetStrings() {
+        if (strings != null) strings.clear();
+    }
+
+    static EfficientOptions options(DataOutputStream dos) {
+        return dos instanceof EfficientOutputStream ? ((EfficientOutputStream) dos).options : null;
+    }
+
+    static void writeLength(DataOutputStream dos, int len) throws IOException {
+        if (dos instanceof EfficientOutputStream && ((EfficientOutputStream) dos).options.useVarintLengths()) {
+            VarInt.writeUnsignedInt(dos, len);
+        } else {
+            dos.writeInt(len);
+        }
+    }
+}
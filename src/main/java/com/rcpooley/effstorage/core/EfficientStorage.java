@@ -2,161 +2,275 @@ package com.rcpooley.effstorage.core;
 
 import com.rcpooley.effstorage.bitio.BitReader;
 import com.rcpooley.effstorage.bitio.BitWriter;
+import com.rcpooley.effstorage.bitio.ByteBufferOutputStream;
+import com.rcpooley.effstorage.bitio.VarInt;
 
+import static com.rcpooley.effstorage.core.ClassPlan.FieldData;
 import static com.rcpooley.effstorage.core.EfficientDeltaValue.Values;
 
 import java.io.*;
 import java.lang.reflect.*;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class EfficientStorage {
 
-    private static class FieldData {
-        Field field;
-        Efficient efficient;
+    private static class ValueSerializer<T> implements EfficientSerializer<T> {
+        Class<T> type;
 
-        FieldData(Field field, Efficient efficient) {
-            this.field = field;
-            this.efficient = efficient;
+        ValueSerializer(Class<T> type) {
+            this.type = type;
+        }
+
+        @Override
+        public void serialize(T obj, DataOutputStream dos) throws IOException {
+            writeValue(obj, dos);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T deserialize(DataInputStream dis) throws IOException {
+            return (T) readValue(type, dis);
         }
     }
 
-    private static class TypeData {
-        Class<?> objClass;
-        Class<?> primClass;
-        String funcName;
-        Class<?> funcParam;
+    // Concurrent so that register can run while other threads look serializers up
+    private static final Map<Class, EfficientSerializer> serializers = new ConcurrentHashMap<>();
 
-        TypeData(Class<?> objClass, Class<?> primClass, String funcName, Class<?> funcParam) {
-            this.objClass = objClass;
-            this.primClass = primClass;
-            this.funcName = funcName;
-            this.funcParam = funcParam;
+    private static final Map<Class, EfficientDeltaValue> deltaValues = new ConcurrentHashMap<>();
+
+    // Delta values for XOR encoded fields, which work on the raw bits instead of a scaled decimal
+    private static final Map<Class, EfficientDeltaValue> rawBitsDeltaValues = new ConcurrentHashMap<>();
+
+    private static final EfficientDeltaValue intDelta = new EfficientDeltaValue() {
+        @Override
+        public int getNumInitialBits() {
+            return 32;
         }
 
-        TypeData(Class<?> objClass, Class<?> primClass, String funcName) {
-            this.objClass = objClass;
-            this.primClass = primClass;
-            this.funcName = funcName;
-            this.funcParam = primClass;
+        @Override
+        public Values getValues(Object[] values) {
+            long[] vals = new long[values.length];
+            for (int i = 0; i < vals.length; i++) vals[i] = (int) values[i];
+            return new Values(vals);
         }
-    }
 
-    private static Map<Class, EfficientSerializer> serializers = new HashMap<>();
+        @Override
+        public Object[] convertValues(Values v) {
+            Object[] vals = new Integer[v.values.length];
+            for (int i = 0; i < vals.length; i++) vals[i] = (int) v.values[i];
+            return vals;
+        }
+    };
 
-    private static Map<Class, EfficientDeltaValue> deltaValues = new HashMap<>();
+    private static final EfficientDeltaValue longDelta = new EfficientDeltaValue() {
+        @Override
+        public int getNumInitialBits() {
+            return 64;
+        }
 
-    static {
-        TypeData[] types = {
-                new TypeData(Integer.class, Integer.TYPE, "Int"),
-                new TypeData(Byte.class, Byte.TYPE, "Byte", Integer.TYPE),
-                new TypeData(Short.class, Short.TYPE, "Short", Integer.TYPE),
-                new TypeData(Long.class, Long.TYPE, "Long"),
-                new TypeData(Character.class, Character.TYPE, "Char", Integer.TYPE),
-                new TypeData(Float.class, Float.TYPE, "Float"),
-                new TypeData(Double.class, Double.TYPE, "Double"),
-                new TypeData(Boolean.class, Boolean.TYPE, "Boolean")
+        @Override
+        public Values getValues(Object[] values) {
+            long[] vals = new long[values.length];
+            for (int i = 0; i < vals.length; i++) vals[i] = (long) values[i];
+            return new Values(vals);
+        }
+
+        @Override
+        public Object[] convertValues(Values v) {
+            Object[] vals = new Long[v.values.length];
+            for (int i = 0; i < vals.length; i++) vals[i] = v.values[i];
+            return vals;
+        }
+    };
+
+    private static final EfficientDeltaValue doubleBitsDelta = new EfficientDeltaValue() {
+        @Override
+        public int getNumInitialBits() {
+            return 64;
+        }
+
+        @Override
+        public Values getValues(Object[] values) {
+            long[] vals = new long[values.length];
+            for (int i = 0; i < vals.length; i++) vals[i] = Double.doubleToRawLongBits((double) values[i]);
+            return new Values(vals);
+        }
+
+        @Override
+        public Object[] convertValues(Values v) {
+            Object[] vals = new Double[v.values.length];
+            for (int i = 0; i < vals.length; i++) vals[i] = Double.longBitsToDouble(v.values[i]);
+            return vals;
+        }
+    };
+
+    private static final EfficientDeltaValue floatBitsDelta = new EfficientDeltaValue() {
+        @Override
+        public int getNumInitialBits() {
+            return 32;
+        }
+
+        @Override
+        public Values getValues(Object[] values) {
+            long[] vals = new long[values.length];
+            for (int i = 0; i < vals.length; i++) vals[i] = Float.floatToRawIntBits((float) values[i]) & 0xFFFFFFFFL;
+            return new Values(vals);
+        }
+
+        @Override
+        public Object[] convertValues(Values v) {
+            Object[] vals = new Float[v.values.length];
+            for (int i = 0; i < vals.length; i++) vals[i] = Float.intBitsToFloat((int) v.values[i]);
+            return vals;
+        }
+    };
+
+    // A plan captures the serializers and delta values of its fields' types too, so registering anything swaps in
+    // a fresh cache instead of trying to find the plans it affects
+    private static volatile ClassValue<ClassPlan> plans = newPlans();
+
+    private static ClassValue<ClassPlan> newPlans() {
+        return new ClassValue<ClassPlan>() {
+            @Override
+            protected ClassPlan computeValue(Class<?> type) {
+                return new ClassPlan(type, serializers.get(type));
+            }
         };
+    }
 
+    static {
         // Handle primitive data types
-        for (TypeData check : types) {
-            EfficientSerializer es = new EfficientSerializer() {
-                @Override
-                public void serialize(Object obj, DataOutputStream dos) {
-                    try {
-                        Method m = dos.getClass().getMethod("write" + check.funcName, check.funcParam);
-                        m.invoke(dos, obj);
-                    } catch (IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
-                        e.printStackTrace();
-                    }
-                }
+        putSerializer(Integer.class, Integer.TYPE, new EfficientSerializer<Integer>() {
+            @Override
+            public void serialize(Integer obj, DataOutputStream dos) throws IOException {
+                dos.writeInt(obj);
+            }
 
-                @Override
-                public Object deserialize(DataInputStream dis) {
-                    try {
-                        Method m = dis.getClass().getMethod("read" + check.funcName);
-                        return m.invoke(dis);
-                    } catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
-                        e.printStackTrace();
-                        return null;
-                    }
-                }
-            };
+            @Override
+            public Integer deserialize(DataInputStream dis) throws IOException {
+                return dis.readInt();
+            }
+        });
 
-            serializers.put(check.objClass, es);
-            serializers.put(check.primClass, es);
-        }
+        putSerializer(Byte.class, Byte.TYPE, new EfficientSerializer<Byte>() {
+            @Override
+            public void serialize(Byte obj, DataOutputStream dos) throws IOException {
+                dos.writeByte(obj);
+            }
 
-        // Handle strings
-        serializers.put(String.class, new EfficientSerializer<String>() {
             @Override
-            public void serialize(String obj, DataOutputStream dos) throws IOException {
-                dos.writeInt(obj.length());
-                dos.write(obj.getBytes());
+            public Byte deserialize(DataInputStream dis) throws IOException {
+                return dis.readByte();
             }
+        });
 
+        putSerializer(Short.class, Short.TYPE, new EfficientSerializer<Short>() {
             @Override
-            public String deserialize(DataInputStream dis) throws IOException {
-                int len = dis.readInt();
-                byte[] bytes = new byte[len];
-                int r = dis.read(bytes);
-                if (r != len) {
-                    throw new RuntimeException("Failed to read " + len + " bytes for string");
-                }
-                return new String(bytes);
+            public void serialize(Short obj, DataOutputStream dos) throws IOException {
+                dos.writeShort(obj);
+            }
+
+            @Override
+            public Short deserialize(DataInputStream dis) throws IOException {
+                return dis.readShort();
             }
         });
 
-        // Set delta values
+        putSerializer(Long.class, Long.TYPE, new EfficientSerializer<Long>() {
+            @Override
+            public void serialize(Long obj, DataOutputStream dos) throws IOException {
+                dos.writeLong(obj);
+            }
 
-        EfficientDeltaValue edv = new EfficientDeltaValue() {
             @Override
-            public int getNumInitialBits() {
-                return 32;
+            public Long deserialize(DataInputStream dis) throws IOException {
+                return dis.readLong();
             }
+        });
 
+        putSerializer(Character.class, Character.TYPE, new EfficientSerializer<Character>() {
             @Override
-            public Values getValues(Object[] values) {
-                long[] vals = new long[values.length];
-                for (int i = 0; i < vals.length; i++) vals[i] = (int) values[i];
-                return new Values(vals);
+            public void serialize(Character obj, DataOutputStream dos) throws IOException {
+                dos.writeChar(obj);
             }
 
             @Override
-            public Object[] convertValues(Values v) {
-                Object[] vals = new Integer[v.values.length];
-                for (int i = 0; i < vals.length; i++) vals[i] = (int) v.values[i];
-                return vals;
+            public Character deserialize(DataInputStream dis) throws IOException {
+                return dis.readChar();
             }
-        };
-        deltaValues.put(Integer.class, edv);
-        deltaValues.put(Integer.TYPE, edv);
+        });
 
-        edv = new EfficientDeltaValue() {
+        putSerializer(Float.class, Float.TYPE, new EfficientSerializer<Float>() {
             @Override
-            public int getNumInitialBits() {
-                return 64;
+            public void serialize(Float obj, DataOutputStream dos) throws IOException {
+                dos.writeFloat(obj);
             }
 
             @Override
-            public Values getValues(Object[] values) {
-                long[] vals = new long[values.length];
-                for (int i = 0; i < vals.length; i++) vals[i] = (long) values[i];
-                return new Values(vals);
+            public Float deserialize(DataInputStream dis) throws IOException {
+                return dis.readFloat();
             }
+        });
 
+        putSerializer(Double.class, Double.TYPE, new EfficientSerializer<Double>() {
             @Override
-            public Object[] convertValues(Values v) {
-                Object[] vals = new Long[v.values.length];
-                for (int i = 0; i < vals.length; i++) vals[i] = v.values[i];
-                return vals;
+            public void serialize(Double obj, DataOutputStream dos) throws IOException {
+                dos.writeDouble(obj);
             }
-        };
-        deltaValues.put(Long.class, edv);
-        deltaValues.put(Long.TYPE, edv);
+
+            @Override
+            public Double deserialize(DataInputStream dis) throws IOException {
+                return dis.readDouble();
+            }
+        });
+
+        putSerializer(Boolean.class, Boolean.TYPE, new EfficientSerializer<Boolean>() {
+            @Override
+            public void serialize(Boolean obj, DataOutputStream dos) throws IOException {
+                dos.writeBoolean(obj);
+            }
+
+            @Override
+            public Boolean deserialize(DataInputStream dis) throws IOException {
+                return dis.readBoolean();
+            }
+        });
+
+        // Handle strings
+        serializers.put(String.class, new EfficientSerializer<String>() {
+            @Override
+            public void serialize(String obj, DataOutputStream dos) throws IOException {
+                StringCodec.write(obj, dos);
+            }
+
+            @Override
+            public String deserialize(DataInputStream dis) throws IOException {
+                return StringCodec.read(dis);
+            }
+        });
+
+        // Set delta values
+
+        deltaValues.put(Integer.class, intDelta);
+        deltaValues.put(Integer.TYPE, intDelta);
+
+        deltaValues.put(Long.class, longDelta);
+        deltaValues.put(Long.TYPE, longDelta);
+
+        EfficientDeltaValue edv;
 
         EfficientDeltaValue bigDecimalEdv = new EfficientDeltaValue() {
             @Override
@@ -165,7 +279,7 @@ public class EfficientStorage {
             }
 
             @Override
-            public Values getValues(Object[] vls) {
+            public Values getValues(Object[] vls) throws IOException {
                 BigDecimal[] values = new BigDecimal[vls.length];
                 for (int i = 0; i < vls.length; i++) {
                     values[i] = (BigDecimal) vls[i];
@@ -178,7 +292,11 @@ public class EfficientStorage {
 
                 long[] vals = new long[values.length];
                 for (int i = 0; i < values.length; i++) {
-                    vals[i] = values[i].setScale(maxScale, RoundingMode.UNNECESSARY).unscaledValue().longValue();
+                    BigDecimal scaled = values[i].setScale(maxScale, RoundingMode.UNNECESSARY);
+                    if (scaled.unscaledValue().bitLength() > 63) {
+                        throw new IOException("Cannot store " + values[i] + " by delta, it does not fit in a long at scale " + maxScale);
+                    }
+                    vals[i] = scaled.unscaledValue().longValue();
                 }
 
                 return new Values(vals, maxScale);
@@ -236,279 +354,929 @@ public class EfficientStorage {
         };
         deltaValues.put(Double.class, edv);
         deltaValues.put(Double.TYPE, edv);
+
+        rawBitsDeltaValues.put(Double.class, doubleBitsDelta);
+        rawBitsDeltaValues.put(Double.TYPE, doubleBitsDelta);
+        rawBitsDeltaValues.put(Float.class, floatBitsDelta);
+        rawBitsDeltaValues.put(Float.TYPE, floatBitsDelta);
     }
 
+    private static void putSerializer(Class<?> objClass, Class<?> primClass, EfficientSerializer<?> es) {
+        serializers.put(objClass, es);
+        serializers.put(primClass, es);
+    }
+
+    // The built in types keep their encoding, so their bytes read the same everywhere
+    private static final Set<Class<?>> builtInSerializers = keys(serializers);
+
+    private static final Set<Class<?>> builtInDeltaValues = keys(deltaValues);
+
+    private static Set<Class<?>> keys(Map<Class, ?> map) {
+        Set<Class<?>> keys = new HashSet<>();
+        for (Class<?> type : map.keySet()) keys.add(type);
+        return keys;
+    }
+
+    // Serialize values of exactly this type with the given serializer, replacing any registered before. Safe to call
+    // while other threads serialize; they pick the serializer up from their next value on.
+    public static <T> void register(Class<T> type, EfficientSerializer<? super T> serializer) {
+        if (type.isPrimitive() || builtInSerializers.contains(type)) {
+            throw new IllegalArgumentException("Cannot replace the built in serializer for " + type.getName());
+        }
+        serializers.put(type, Objects.requireNonNull(serializer));
+        plans = newPlans();
+    }
+
+    // Store storeByDelta fields of exactly this type with the given delta value. Array serializers generated by the
+    // efficientstorage-processor look their delta values up once, when loaded, so register before first use.
+    public static void registerDelta(Class<?> type, EfficientDeltaValue deltaValue) {
+        if (builtInDeltaValues.contains(type)) {
+            throw new IllegalArgumentException("Cannot replace the built in delta value for " + type.getName());
+        }
+        deltaValues.put(type, Objects.requireNonNull(deltaValue));
+        plans = newPlans();
+    }
+
+    // Drop a serializer given to register; built in serializers stay
+    public static void unregister(Class<?> type) {
+        if (!builtInSerializers.contains(type) && serializers.remove(type) != null) {
+            plans = newPlans();
+        }
+    }
+
+    // Drop a delta value given to registerDelta; built in delta values stay
+    public static void unregisterDelta(Class<?> type) {
+        if (!builtInDeltaValues.contains(type) && deltaValues.remove(type) != null) {
+            plans = newPlans();
+        }
+    }
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private static final EfficientOptions DEFAULT_OPTIONS = new EfficientOptions();
+
     public static byte[] serialize(Object object) throws EfficientException {
+        return serialize(object, DEFAULT_OPTIONS);
+    }
+
+    public static byte[] serialize(Object object, EfficientOptions options) throws EfficientException {
         // Create byte stream
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
 
         // Serialize the object
+        write(object, new EfficientOutputStream(baos, options));
+
+        // Return the final byte array
+        return baos.toByteArray();
+    }
+
+    public static void serialize(Object object, OutputStream os) throws EfficientException {
+        serialize(object, os, DEFAULT_OPTIONS);
+    }
+
+    public static void serialize(Object object, OutputStream os, EfficientOptions options) throws EfficientException {
+        DataOutputStream dos = new EfficientOutputStream(new BufferedOutputStream(os, STREAM_BUFFER_SIZE), options);
+        write(object, dos);
+
+        // Push the buffered tail out but leave the caller's stream open
         try {
-            serialize(object, dos);
-        } catch (IOException | IllegalAccessException e) {
+            dos.flush();
+        } catch (IOException e) {
             throw new EfficientException(e);
         }
+    }
 
-        // Return the final byte array
-        return baos.toByteArray();
+    public static void serialize(Object object, WritableByteChannel channel) throws EfficientException {
+        serialize(object, channel, DEFAULT_OPTIONS);
+    }
+
+    public static void serialize(Object object, WritableByteChannel channel, EfficientOptions options) throws EfficientException {
+        serialize(object, Channels.newOutputStream(channel), options);
+    }
+
+    public static void serialize(Object object, ByteBuffer buffer) throws EfficientException {
+        serialize(object, buffer, DEFAULT_OPTIONS);
+    }
+
+    // Writes at the buffer's position and advances it past the payload; the position is left untouched on failure
+    public static void serialize(Object object, ByteBuffer buffer, EfficientOptions options) throws EfficientException {
+        int start = buffer.position();
+        try {
+            write(object, new EfficientOutputStream(new ByteBufferOutputStream(buffer), options));
+        } catch (BufferOverflowException e) {
+            buffer.position(start);
+            throw new EfficientException("Buffer too small to serialize " + object.getClass().getName());
+        }
+    }
+
+    public static <T> EfficientArrayWriter<T> newArrayWriter(Class<T> type, OutputStream os) {
+        return newArrayWriter(type, os, DEFAULT_OPTIONS);
+    }
+
+    public static <T> EfficientArrayWriter<T> newArrayWriter(Class<T> type, OutputStream os, EfficientOptions options) {
+        return new EfficientArrayWriter<>(type, new BufferedOutputStream(os, STREAM_BUFFER_SIZE), options);
+    }
+
+    public static <T> Iterator<T> iterate(Class<T> type, InputStream is) {
+        return iterate(type, is, DEFAULT_OPTIONS);
+    }
+
+    // Reads an array written by an EfficientArrayWriter a chunk at a time, holding no more than one chunk
+    public static <T> Iterator<T> iterate(Class<T> type, InputStream is, EfficientOptions options) {
+        return new EfficientArrayReader<>(type, new BufferedInputStream(is, STREAM_BUFFER_SIZE), options);
+    }
+
+    public static <T> Stream<T> stream(Class<T> type, InputStream is) {
+        return stream(type, is, DEFAULT_OPTIONS);
+    }
+
+    public static <T> Stream<T> stream(Class<T> type, InputStream is, EfficientOptions options) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterate(type, is, options), Spliterator.ORDERED | Spliterator.NONNULL), false);
     }
 
     public static Object deserialize(Class<?> clazz, byte[] data) throws EfficientException {
-        ByteArrayInputStream bais = new ByteArrayInputStream(data);
-        DataInputStream dis = new DataInputStream(bais);
+        return deserialize(clazz, data, DEFAULT_OPTIONS);
+    }
 
+    public static Object deserialize(Class<?> clazz, byte[] data, EfficientOptions options) throws EfficientException {
+        return deserialize(clazz, ByteBuffer.wrap(data), options);
+    }
+
+    public static Object deserialize(Class<?> clazz, byte[] data, Projection projection) throws EfficientException {
+        return deserialize(clazz, data, projection, DEFAULT_OPTIONS);
+    }
+
+    public static Object deserialize(Class<?> clazz, byte[] data, Projection projection, EfficientOptions options) throws EfficientException {
+        return deserialize(clazz, ByteBuffer.wrap(data), projection, options);
+    }
+
+    public static Object deserialize(Class<?> clazz, ByteBuffer buffer) throws EfficientException {
+        return deserialize(clazz, buffer, DEFAULT_OPTIONS);
+    }
+
+    // Reads from the buffer's position, leaving it just past the payload. Works on mapped buffers without copying.
+    public static Object deserialize(Class<?> clazz, ByteBuffer buffer, EfficientOptions options) throws EfficientException {
+        return read(clazz, new EfficientInputStream(buffer, options));
+    }
+
+    public static Object deserialize(Class<?> clazz, ByteBuffer buffer, Projection projection) throws EfficientException {
+        return deserialize(clazz, buffer, projection, DEFAULT_OPTIONS);
+    }
+
+    public static Object deserialize(Class<?> clazz, ByteBuffer buffer, Projection projection, EfficientOptions options) throws EfficientException {
+        return read(clazz, new EfficientInputStream(buffer, options), projection);
+    }
+
+    public static Object deserialize(Class<?> clazz, Path path) throws EfficientException {
+        return deserialize(clazz, path, DEFAULT_OPTIONS);
+    }
+
+    public static Object deserialize(Class<?> clazz, Path path, EfficientOptions options) throws EfficientException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return deserialize(clazz, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), options);
+        } catch (IOException e) {
+            throw new EfficientException(e);
+        }
+    }
+
+    public static Object deserialize(Class<?> clazz, InputStream is) throws EfficientException {
+        return deserialize(clazz, is, DEFAULT_OPTIONS);
+    }
+
+    // The stream is read through a buffer, so bytes following the payload may be consumed as well
+    public static Object deserialize(Class<?> clazz, InputStream is, EfficientOptions options) throws EfficientException {
+        return read(clazz, new EfficientInputStream(new BufferedInputStream(is, STREAM_BUFFER_SIZE), options));
+    }
+
+    public static Object deserialize(Class<?> clazz, InputStream is, Projection projection) throws EfficientException {
+        return deserialize(clazz, is, projection, DEFAULT_OPTIONS);
+    }
+
+    public static Object deserialize(Class<?> clazz, InputStream is, Projection projection, EfficientOptions options) throws EfficientException {
+        return read(clazz, new EfficientInputStream(new BufferedInputStream(is, STREAM_BUFFER_SIZE), options), projection);
+    }
+
+    public static Object deserialize(Class<?> clazz, ReadableByteChannel channel) throws EfficientException {
+        return deserialize(clazz, channel, DEFAULT_OPTIONS);
+    }
+
+    public static Object deserialize(Class<?> clazz, ReadableByteChannel channel, EfficientOptions options) throws EfficientException {
+        return deserialize(clazz, Channels.newInputStream(channel), options);
+    }
+
+    public static <T> T deserializeInto(T target, byte[] data) throws EfficientException {
+        return deserializeInto(target, data, DEFAULT_OPTIONS);
+    }
+
+    public static <T> T deserializeInto(T target, byte[] data, EfficientOptions options) throws EfficientException {
+        return deserializeInto(target, ByteBuffer.wrap(data), options);
+    }
+
+    public static <T> T deserializeInto(T target, ByteBuffer buffer) throws EfficientException {
+        return deserializeInto(target, buffer, DEFAULT_OPTIONS);
+    }
+
+    // Reads a payload of target's class into target, and on down into the objects and arrays its fields already
+    // hold, instead of allocating new ones. An array of another length than the stored one can't be filled in, so
+    // a new one is made: use the returned value, which is target whenever target could be reused.
+    @SuppressWarnings("unchecked")
+    public static <T> T deserializeInto(T target, ByteBuffer buffer, EfficientOptions options) throws EfficientException {
+        EfficientInputStream dis = new EfficientInputStream(buffer, options);
+        dis.reuse = true;
+        return (T) read(target.getClass(), dis, target);
+    }
+
+    static void write(Object object, DataOutputStream dos) throws EfficientException {
         try {
-            return deserialize(clazz, dis);
-        } catch (IOException | IllegalAccessException | InstantiationException | InvocationTargetException e) {
+            EfficientOptions options = EfficientOutputStream.options(dos);
+            if (options != null && options.getCodec() != null) {
+                // Compressed a block at a time as the payload is encoded
+                CompressedBlocks.Compressor compressor = new CompressedBlocks.Compressor(dos, options);
+                serialize(object, new EfficientOutputStream(compressor, options));
+                compressor.finish();
+            } else {
+                serialize(object, dos);
+            }
+        } catch (EfficientIOException e) {
+            throw e.getCause();
+        } catch (IOException | IllegalAccessException | IllegalStateException e) {
+            // IllegalStateException comes out of plans for classes whose fields or generated serializers can't be used
             throw new EfficientException(e);
         }
     }
 
-    private static void serialize(Object obj, DataOutputStream dos) throws IOException, IllegalAccessException, EfficientException {
-        if (obj == null) {
-            throw new EfficientException("Tried to serialize null object");
+    // Only columnar arrays store what it takes to skip a field, so projections are limited to them
+    private static Object read(Class<?> clazz, EfficientInputStream dis, Projection projection) throws EfficientException {
+        if (!clazz.isArray() || !checkedPlan(clazz.getComponentType()).columnar) {
+            throw new EfficientException("Projections need an array of a columnar class, got " + clazz.getName());
         }
+        dis.projection = projection;
+        return read(clazz, dis);
+    }
 
-        Class<?> type = obj.getClass();
+    static Object read(Class<?> clazz, DataInputStream dis) throws EfficientException {
+        return read(clazz, dis, null);
+    }
 
-        // Handle serializers
-        if (serializers.containsKey(type)) {
-            serializers.get(type).serialize(obj, dos);
-            return;
+    private static Object read(Class<?> clazz, DataInputStream dis, Object existing) throws EfficientException {
+        try {
+            EfficientOptions options = EfficientInputStream.options(dis);
+            if (options == null || options.getCodec() == null) {
+                return deserialize(clazz, dis, existing);
+            }
+
+            // Decompressed a block at a time as the payload is decoded
+            CompressedBlocks.Decompressor decompressor = new CompressedBlocks.Decompressor(dis, options);
+            EfficientInputStream raw = new EfficientInputStream(decompressor, options);
+            raw.projection = ((EfficientInputStream) dis).projection;
+            raw.reuse = ((EfficientInputStream) dis).reuse;
+            Object obj = deserialize(clazz, raw, existing);
+            decompressor.finish();
+            return obj;
+        } catch (EfficientIOException e) {
+            throw e.getCause();
+        } catch (IOException | IllegalAccessException | InstantiationException | InvocationTargetException | IllegalStateException e) {
+            throw new EfficientException(e);
         }
+    }
 
-        // Handle EfficientSerializable interfaces
-        if (obj instanceof EfficientSerializable) {
-            EfficientSerializable es = (EfficientSerializable) obj;
-            es.serialize(dos);
-            return;
+    public static <T> EfficientSerializer<T> getSerializer(Class<T> type) {
+        return new ValueSerializer<>(type);
+    }
+
+    public static EfficientDeltaValue getDeltaValue(Class<?> type) {
+        return deltaValues.get(type);
+    }
+
+    public static EfficientDeltaValue getDeltaValue(Class<?> type, DeltaEncoding encoding) {
+        if (encoding == DeltaEncoding.XOR) {
+            EfficientDeltaValue rawBits = rawBitsDeltaValues.get(type);
+            if (rawBits != null) return rawBits;
         }
+        return deltaValues.get(type);
+    }
 
-        // Handle arrays
-        if (type.isArray()) {
-            int len = Array.getLength(obj);
-            dos.writeInt(len);
+    static ClassPlan plan(Class<?> type) {
+        return plans.get(type);
+    }
+
+    // The plan for a type, for callers outside write and read
+    static ClassPlan checkedPlan(Class<?> type) throws EfficientException {
+        try {
+            return plans.get(type);
+        } catch (IllegalStateException e) {
+            throw new EfficientException(e);
+        }
+    }
+
+    // Entry points for serializers that hand nested values back to the engine
+    static void writeValue(Object obj, DataOutputStream dos) throws IOException {
+        try {
+            serialize(obj, dos);
+        } catch (EfficientException e) {
+            throw new EfficientIOException(e);
+        } catch (IllegalAccessException | IllegalStateException e) {
+            throw new EfficientIOException(new EfficientException(e));
+        }
+    }
 
-            if (len == 0) return;
+    static Object readValue(Class<?> type, DataInputStream dis) throws IOException {
+        try {
+            return deserialize(type, dis);
+        } catch (EfficientException e) {
+            throw new EfficientIOException(e);
+        } catch (IllegalAccessException | InstantiationException | InvocationTargetException | IllegalStateException e) {
+            throw new EfficientIOException(new EfficientException(e));
+        }
+    }
 
-            for (int i = 0; i < len; i++) {
-                serialize(Array.get(obj, i), dos);
+    private static void serialize(Object obj, DataOutputStream dos) throws IOException, IllegalAccessException, EfficientException {
+        if (obj == null) {
+            throw new EfficientException("Tried to serialize null object");
+        }
+
+        Class<?> type = obj.getClass();
+        ClassPlan plan = plans.get(type);
+
+        // Generated array serializers leave element indexes and parallel delta columns to the runtime
+        ClassPlan.Kind kind = plan.kind;
+        if (plan.generatedArray) {
+            EfficientOptions options = EfficientOutputStream.options(dos);
+            if (indexInterval(options) > 0 || (options != null && options.parallel(((Object[]) obj).length))) {
+                kind = ClassPlan.Kind.ARRAY;
             }
+        }
 
-            // Store storeByDelta fields
-            List<FieldData> deltaFields = getEfficientFields(type.getComponentType())
-                    .stream()
-                    .filter(data -> data.efficient.storeByDelta())
-                    .collect(Collectors.toList());
+        switch (kind) {
+            case SERIALIZER:
+                plan.serializer.serialize(obj, dos);
+                return;
 
-            BitWriter bw = new BitWriter(dos);
-            for (FieldData data : deltaFields) {
-                data.field.setAccessible(true);
-                Class<?> dataType = data.field.getType();
+            case SERIALIZABLE:
+                ((EfficientSerializable) obj).serialize(dos);
+                return;
 
-                EfficientDeltaValue edv = deltaValues.get(dataType);
-                if (edv == null) {
-                    throw new EfficientException("Field " + data.field.getName() + " in class " + type.getName() + " is marked as storeByDelta, but is not a recognized delta type");
-                }
+            case PRIMITIVE_ARRAY:
+                PrimitiveArrays.write(obj, plan.componentKind, dos);
+                return;
 
-                // Get array of the raw values of this delta field
-                Object[] rawVals = new Object[len];
-                for (int i = 0; i < len; i++) {
-                    rawVals[i] = data.field.get(Array.get(obj, i));
+            case ARRAY: {
+                Object[] elements = (Object[]) obj;
+                int len = elements.length;
+                EfficientOutputStream.writeLength(dos, len);
+
+                if (len == 0) return;
+
+                ClassPlan componentPlan = plans.get(type.getComponentType());
+                if (componentPlan.columnar) {
+                    writeColumns(componentPlan, elements, dos);
+                    return;
                 }
 
-                // Get the unscaled values
-                Values v = edv.getValues(rawVals);
-                long[] vals = v.values;
-
-                // Calculate the offsets
-                int offsetBits = 1;
-                long maxOffset = 1 << (offsetBits - 1);
-                long[] offsets = new long[vals.length - 1];
-                for (int i = 0; i < len - 1; i++) {
-                    offsets[i] = vals[i + 1] - vals[i];
-                    while (offsetBits < 64 && (offsets[i] >= maxOffset || offsets[i] < -maxOffset)) {
-                        offsetBits++;
-                        maxOffset = 1L << (offsetBits - 1);
+                int interval = indexInterval(EfficientOutputStream.options(dos));
+                if (interval > 0) {
+                    writeIndexedElements(elements, interval, dos);
+                } else {
+                    for (Object element : elements) {
+                        serialize(element, dos);
                     }
                 }
 
-                // Write number of offset bits
-                bw.writeBits(offsetBits, 8);
+                // Store storeByDelta fields
+                FieldData[] deltaFields = componentPlan.deltaFields;
 
-                if (offsetBits == 64) {
-                    for (long val : vals) {
-                        bw.writeBits(val, 64);
+                for (FieldData data : deltaFields) {
+                    if (data.deltaValue == null) {
+                        throw new EfficientException("Field " + data.field.getName() + " in class " + type.getName() + " is marked as storeByDelta, but is not a recognized delta type");
                     }
+                }
+
+                BitWriter bw = new BitWriter(dos);
+                EfficientOptions options = EfficientOutputStream.options(dos);
+                if (deltaFields.length > 0 && options != null && options.parallel(len)) {
+                    ParallelDeltaColumns.write(bw, deltaFields, elements, options);
                 } else {
-                    // Write the first value
-                    bw.writeBits(vals[0], edv.getNumInitialBits());
-
-                    // Write the offsets
-                    for (long o : offsets) {
-                        if (o < 0) {
-                            bw.writeBits(1, 1);
-                            bw.writeBits(maxOffset + o, offsetBits - 1);
-                        } else {
-                            bw.writeBits(0, 1);
-                            bw.writeBits(o, offsetBits - 1);
-                        }
+                    for (FieldData data : deltaFields) {
+                        DeltaColumn.write(bw, data.deltaValue, data.deltaEncoding, data.blockSize, getDeltaValues(data, elements));
                     }
                 }
+                bw.finish();
 
-                // Write the scale
-                if (edv.useScale()) bw.writeBits(v.scale, 32);
-
-                data.field.setAccessible(false);
+                return;
             }
-            bw.finish();
 
-            return;
-        }
+            case EFFICIENT:
+                // Now write the value of each field
+                for (FieldData data : plan.fields) {
+                    writeField(data, obj, dos);
+                }
+                return;
 
-        // Handle other Efficient classes
-        if (type.isAnnotationPresent(Efficient.class)) {
-            // Get all fields annotated with @Efficient
-            List<FieldData> fields = getEfficientFields(type)
-                    .stream()
-                    .filter(data -> !data.efficient.storeByDelta())
-                    .collect(Collectors.toList());
-
-            // Now write the value of each field
-            for (FieldData data : fields) {
-                Field field = data.field;
-                field.setAccessible(true);
-                serialize(field.get(obj), dos);
-                field.setAccessible(false);
-            }
-            return;
+            default:
+                // Throw exception for unrecognized type
+                throw new EfficientException("Unrecognized field type: " + type.getName());
         }
-
-        // Throw exception for unrecognized type
-        throw new EfficientException("Unrecognized field type: " + type.getName());
     }
 
     private static Object deserialize(Class<?> type, DataInputStream dis) throws IOException, EfficientException, IllegalAccessException, InvocationTargetException, InstantiationException {
-        // Handle serializers
-        if (serializers.containsKey(type)) {
-            return serializers.get(type).deserialize(dis);
+        return deserialize(type, dis, (Object) null);
+    }
+
+    // existing is the value already in the place being read into, if any. Arrays of the stored length and
+    // instances of exactly the type are filled in rather than replaced.
+    private static Object deserialize(Class<?> type, DataInputStream dis, Object existing) throws IOException, EfficientException, IllegalAccessException, InvocationTargetException, InstantiationException {
+        ClassPlan plan = plans.get(type);
+        EfficientOptions options = EfficientInputStream.options(dis);
+        int interval = indexInterval(options);
+        InstancePool pool = options == null ? null : options.getInstancePool();
+        if (existing != null && existing.getClass() != type) existing = null;
+
+        // Plain @Efficient classes given an instance to fill in are read field by field, whatever serializer they have
+        boolean inPlace = plan.byFields && (existing != null || pool != null);
+
+        // Handle serializers. The length of a generated array isn't known yet, so any executor sends it to the runtime.
+        boolean runtimeArray = plan.generatedArray && (interval > 0 || existing != null || pool != null || (options != null && options.getExecutor() != null));
+        if (plan.kind == ClassPlan.Kind.SERIALIZER && !inPlace && !runtimeArray) {
+            return plan.serializer.deserialize(dis);
+        }
+
+        // Handle primitive arrays in bulk
+        if (plan.kind == ClassPlan.Kind.PRIMITIVE_ARRAY) {
+            return PrimitiveArrays.read(plan.componentKind, dis, existing);
         }
 
         // Handle arrays
-        if (type.isArray()) {
-            int len = dis.readInt();
-            Object arr = Array.newInstance(type.getComponentType(), len);
+        if (plan.kind == ClassPlan.Kind.ARRAY || plan.generatedArray) {
+            Class<?> componentType = type.getComponentType();
+            int len = EfficientInputStream.readLength(dis);
+            Object[] arr = existing != null && ((Object[]) existing).length == len ? (Object[]) existing : (Object[]) Array.newInstance(componentType, len);
 
             if (len == 0) return arr;
 
-            for (int i = 0; i < len; i++) {
-                Array.set(arr, i, deserialize(type.getComponentType(), dis));
+            ClassPlan componentPlan = plans.get(componentType);
+            if (componentPlan.columnar) {
+                // The projection applies to the array at the top of the payload alone; nested values are read from
+                // streams of their own
+                readColumns(componentPlan, arr, dis, dis instanceof EfficientInputStream ? ((EfficientInputStream) dis).projection : null);
+                return arr;
+            }
+
+            if (interval > 0) {
+                int[] offsets = readElementIndex(dis, len, interval);
+                EfficientInputStream elements = EfficientInputStream.slice(dis, offsets[offsets.length - 1], EfficientInputStream.options(dis));
+                for (int i = 0; i < len; i++) {
+                    if (i % interval == 0) elements.resetStrings();
+                    arr[i] = deserialize(componentType, elements, arr[i]);
+                }
+            } else {
+                for (int i = 0; i < len; i++) {
+                    arr[i] = deserialize(componentType, dis, arr[i]);
+                }
             }
 
             // Retrieve storeByDelta fields
-            List<FieldData> deltaFields = getEfficientFields(type.getComponentType())
-                    .stream()
-                    .filter(data -> data.efficient.storeByDelta())
-                    .collect(Collectors.toList());
+            FieldData[] deltaFields = componentPlan.deltaFields;
 
-            BitReader br = new BitReader(dis);
             for (FieldData data : deltaFields) {
-                data.field.setAccessible(true);
-
-                Class<?> dataType = data.field.getType();
-
-                EfficientDeltaValue edv = deltaValues.get(dataType);
-                if (edv == null) {
+                if (data.deltaValue == null) {
                     throw new EfficientException("Field " + data.field.getName() + " in class " + type.getName() + " is marked as storeByDelta, but is not a recognized delta type");
                 }
+            }
 
-                int offsetBits = br.readBits(8);
-                long maxOffset = (long) Math.pow(2, offsetBits) / 2;
+            BitReader br = EfficientInputStream.newBitReader(dis);
+            if (deltaFields.length > 0 && options != null && options.parallel(len)) {
+                ParallelDeltaColumns.read(br, deltaFields, arr, options);
+            } else {
+                for (FieldData data : deltaFields) {
+                    setDeltaValues(data, arr, DeltaColumn.read(br, data.deltaValue, data.deltaEncoding, data.blockSize, len));
+                }
+            }
 
-                // Read values
-                long[] vals = new long[len];
+            return arr;
+        }
 
-                if (offsetBits == 64) {
-                    for (int i = 0; i < len; i++) {
-                        vals[i] = br.readBitsLong(64);
-                    }
-                } else {
-                    // Read first value
-                    vals[0] = br.readBitsLong(edv.getNumInitialBits());
-
-                    // Read each offset
-                    for (int i = 1; i < len; i++) {
-                        boolean negative = br.readBits(1) == 1;
-                        long val = br.readBitsLong(offsetBits - 1);
-                        if (negative) {
-                            val -= maxOffset;
-                        }
-                        vals[i] = vals[i - 1] + val;
-                    }
+        // Handle other Efficient classes
+        if (plan.efficient) {
+            Object obj = existing != null ? existing : newInstance(plan, pool);
+
+            if (plan.kind == ClassPlan.Kind.SERIALIZABLE) {
+                ((EfficientSerializable) obj).deserialize(dis);
+            } else {
+                // Read field values
+                for (FieldData data : plan.fields) {
+                    readField(data, obj, dis);
                 }
+            }
+
+            return obj;
+        }
 
-                int scale = edv.useScale() ? br.readBits(32) : 0;
+        // Throw exception for unrecognized type
+        throw new EfficientException("Unrecognized field type: " + type.getName());
+    }
 
-                Object[] rawValues = edv.convertValues(new Values(vals, scale));
-                for (int i = 0; i < len; i++) {
-                    data.field.set(Array.get(arr, i), rawValues[i]);
+    // An instance from the pool, else a new one from the cached default constructor
+    private static Object newInstance(ClassPlan plan, InstancePool pool) throws EfficientException, IllegalAccessException, InvocationTargetException, InstantiationException {
+        if (pool != null) {
+            Object obj = pool.take(plan.type);
+            if (obj != null) {
+                if (obj.getClass() != plan.type) {
+                    throw new EfficientException("Instance pool gave a " + obj.getClass().getName() + " for class " + plan.type.getName());
                 }
+                return obj;
+            }
+        }
+
+        Constructor<?> c = plan.constructor;
+        if (c == null) {
+            throw new EfficientException("No default constructor found for class " + plan.type.getName());
+        }
+        return c.newInstance();
+    }
+
+    private static int indexInterval(EfficientOptions options) {
+        return options == null ? 0 : options.getElementIndexInterval();
+    }
 
-                data.field.setAccessible(false);
+    // The byte offset of every interval-th element and the end of the last one as 32-bit ints, then the elements.
+    // The elements are a payload of their own whose string dictionary starts over at each indexed element, so
+    // reading can begin at any of them.
+    private static void writeIndexedElements(Object[] elements, int interval, DataOutputStream dos) throws IOException, IllegalAccessException, EfficientException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        EfficientOutputStream eos = new EfficientOutputStream(encoded, EfficientOutputStream.options(dos));
+        int[] offsets = new int[DeltaColumn.blockCount(elements.length, interval) + 1];
+        for (int i = 0; i < elements.length; i++) {
+            if (i % interval == 0) {
+                offsets[i / interval] = encoded.size();
+                eos.resetStrings();
             }
+            serialize(elements[i], eos);
+        }
+        offsets[offsets.length - 1] = encoded.size();
 
-            return arr;
+        for (int offset : offsets) {
+            dos.writeInt(offset);
         }
+        encoded.writeTo(dos);
+    }
 
-        // Handle other Efficient classes
-        if (type.isAnnotationPresent(Efficient.class)) {
-            // Get the default constructor
-            Constructor c;
-            try {
-                c = type.getDeclaredConstructor();
-            } catch (NoSuchMethodException e) {
-                throw new EfficientException("No default constructor found for class " + type.getName());
+    static int[] readElementIndex(DataInputStream dis, int len, int interval) throws IOException {
+        int[] offsets = new int[DeltaColumn.blockCount(len, interval) + 1];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = dis.readInt();
+            if (offsets[i] < 0 || (i > 0 && offsets[i] < offsets[i - 1])) {
+                throw new IOException("Corrupt element index");
             }
+        }
+        return offsets;
+    }
 
-            // Create new instance of clazz
-            c.setAccessible(true);
-            Object obj = c.newInstance();
-            c.setAccessible(false);
+    // Each field in a length-prefixed column of its own, the storeByDelta fields last. A column is written as a
+    // payload of its own, string dictionary included, so it can be read without the others.
+    private static void writeColumns(ClassPlan plan, Object[] elements, DataOutputStream dos) throws IOException, IllegalAccessException, EfficientException {
+        for (Object element : elements) {
+            if (element == null) {
+                throw new EfficientException("Tried to serialize null object");
+            }
+        }
+        for (FieldData data : plan.deltaFields) {
+            if (data.deltaValue == null) {
+                throw new EfficientException("Field " + data.field.getName() + " in class " + plan.type.getName() + " is marked as storeByDelta, but is not a recognized delta type");
+            }
+        }
 
-            if (EfficientSerializable.class.isAssignableFrom(type)) {
-                ((EfficientSerializable) obj).deserialize(dis);
+        EfficientOptions options = EfficientOutputStream.options(dos);
+        if (options == null) options = DEFAULT_OPTIONS;
+
+        ByteArrayOutputStream column = new ByteArrayOutputStream();
+        for (FieldData data : plan.fields) {
+            column.reset();
+            EfficientOutputStream cos = new EfficientOutputStream(column, options);
+            writeColumn(data, elements, cos);
+            cos.flush();
+            EfficientOutputStream.writeLength(dos, column.size());
+            column.writeTo(dos);
+        }
+
+        for (FieldData data : plan.deltaFields) {
+            column.reset();
+            BitWriter bw = new BitWriter(column);
+            if (options.parallel(elements.length)) {
+                ParallelDeltaColumns.write(bw, new FieldData[]{data}, elements, options);
             } else {
-                // Get all fields annotated with @Efficient
-                List<FieldData> fields = getEfficientFields(type)
-                        .stream()
-                        .filter(data -> !data.efficient.storeByDelta())
-                        .collect(Collectors.toList());
+                DeltaColumn.write(bw, data.deltaValue, data.deltaEncoding, data.blockSize, getDeltaValues(data, elements));
+            }
+            bw.finish();
+            EfficientOutputStream.writeLength(dos, column.size());
+            column.writeTo(dos);
+        }
+    }
 
-                // Read field values
-                for (FieldData data : fields) {
-                    Field field = data.field;
-                    field.setAccessible(true);
-                    field.set(obj, deserialize(field.getType(), dis));
-                    field.setAccessible(false);
+    private static void writeColumn(FieldData data, Object[] elements, DataOutputStream dos) throws IOException, IllegalAccessException, EfficientException {
+        FieldAccessor accessor = data.accessor;
+        if (data.varint) {
+            for (Object element : elements) {
+                writeVarint(data, element, dos);
+            }
+        } else if (accessor.kind != ValueKind.OBJECT) {
+            PrimitiveArrays.writeValues(PrimitiveArrays.getColumn(accessor, elements), accessor.kind, dos);
+        } else if (plans.get(accessor.type).byFields) {
+            // Nested objects are laid out in columns as well
+            Object[] values = (Object[]) Array.newInstance(accessor.type, elements.length);
+            for (int i = 0; i < values.length; i++) {
+                values[i] = accessor.get(elements[i]);
+            }
+            writeColumns(plans.get(accessor.type), values, dos);
+        } else {
+            for (Object element : elements) {
+                serialize(accessor.get(element), dos);
+            }
+        }
+    }
+
+    private static void readColumns(ClassPlan plan, Object[] arr, DataInputStream dis, Projection projection) throws IOException, EfficientException, IllegalAccessException, InvocationTargetException, InstantiationException {
+        EfficientOptions options = EfficientInputStream.options(dis);
+        if (options == null) options = DEFAULT_OPTIONS;
+
+        for (int i = 0; i < arr.length; i++) {
+            if (arr[i] == null || arr[i].getClass() != plan.type) {
+                arr[i] = newInstance(plan, options.getInstancePool());
+            }
+        }
+        for (FieldData data : plan.deltaFields) {
+            if (data.deltaValue == null) {
+                throw new EfficientException("Field " + data.field.getName() + " in class " + plan.type.getName() + " is marked as storeByDelta, but is not a recognized delta type");
+            }
+        }
+
+        if (projection != null) checkProjection(plan, projection);
+
+        for (FieldData data : plan.fields) {
+            String name = data.field.getName();
+            if (projection != null && !projection.includes(name)) {
+                EfficientInputStream.skipColumn(dis);
+                continue;
+            }
+            readColumn(data, arr, EfficientInputStream.column(dis, options), projection == null ? null : projection.nested(name));
+        }
+
+        for (FieldData data : plan.deltaFields) {
+            if (projection != null && !projection.includes(data.field.getName())) {
+                EfficientInputStream.skipColumn(dis);
+                continue;
+            }
+            BitReader br = EfficientInputStream.newBitReader(EfficientInputStream.column(dis, options));
+            if (options.parallel(arr.length)) {
+                ParallelDeltaColumns.read(br, new FieldData[]{data}, arr, options);
+            } else {
+                setDeltaValues(data, arr, DeltaColumn.read(br, data.deltaValue, data.deltaEncoding, data.blockSize, arr.length));
+            }
+        }
+    }
+
+    private static void checkProjection(ClassPlan plan, Projection projection) throws EfficientException {
+        for (String name : projection.fields()) {
+            FieldData data = null;
+            for (FieldData[] fields : new FieldData[][]{plan.fields, plan.deltaFields}) {
+                for (FieldData f : fields) {
+                    if (f.field.getName().equals(name)) data = f;
                 }
             }
+            if (data == null) {
+                throw new EfficientException("No field " + name + " in class " + plan.type.getName());
+            }
+            if (projection.nested(name) != null && (data.efficient.storeByDelta() || data.accessor.kind != ValueKind.OBJECT || !plans.get(data.accessor.type).byFields)) {
+                throw new EfficientException("Field " + name + " in class " + plan.type.getName() + " has no fields to project");
+            }
+        }
+    }
 
-            return obj;
+    private static void readColumn(FieldData data, Object[] arr, DataInputStream dis, Projection projection) throws IOException, EfficientException, IllegalAccessException, InvocationTargetException, InstantiationException {
+        FieldAccessor accessor = data.accessor;
+        if (data.varint) {
+            for (Object element : arr) {
+                readVarint(data, element, dis);
+            }
+        } else if (accessor.kind != ValueKind.OBJECT) {
+            PrimitiveArrays.setColumn(accessor, arr, PrimitiveArrays.readValues(accessor.kind, arr.length, dis));
+        } else if (plans.get(accessor.type).byFields) {
+            Object[] values = (Object[]) Array.newInstance(accessor.type, arr.length);
+            if (EfficientInputStream.reuse(dis)) {
+                for (int i = 0; i < arr.length; i++) {
+                    values[i] = accessor.get(arr[i]);
+                }
+            }
+            readColumns(plans.get(accessor.type), values, dis, projection);
+            for (int i = 0; i < arr.length; i++) {
+                accessor.set(arr[i], values[i]);
+            }
+        } else {
+            boolean reuse = EfficientInputStream.reuse(dis);
+            for (Object element : arr) {
+                accessor.set(element, deserialize(accessor.type, dis, reuse ? accessor.get(element) : null));
+            }
         }
+    }
 
-        // Throw exception for unrecognized type
-        throw new EfficientException("Unrecognized field type: " + type.getName());
+    private static void writeField(FieldData data, Object obj, DataOutputStream dos) throws IOException, IllegalAccessException, EfficientException {
+        if (data.varint) {
+            writeVarint(data, obj, dos);
+            return;
+        }
+
+        FieldAccessor accessor = data.accessor;
+        switch (accessor.kind) {
+            case BOOLEAN:
+                dos.writeBoolean(accessor.getBoolean(obj));
+                break;
+            case BYTE:
+                dos.writeByte(accessor.getByte(obj));
+                break;
+            case SHORT:
+                dos.writeShort(accessor.getShort(obj));
+                break;
+            case CHAR:
+                dos.writeChar(accessor.getChar(obj));
+                break;
+            case INT:
+                dos.writeInt(accessor.getInt(obj));
+                break;
+            case LONG:
+                dos.writeLong(accessor.getLong(obj));
+                break;
+            case FLOAT:
+                dos.writeFloat(accessor.getFloat(obj));
+                break;
+            case DOUBLE:
+                dos.writeDouble(accessor.getDouble(obj));
+                break;
+            default:
+                serialize(accessor.get(obj), dos);
+        }
+    }
+
+    private static void readField(FieldData data, Object obj, DataInputStream dis) throws IOException, EfficientException, IllegalAccessException, InvocationTargetException, InstantiationException {
+        if (data.varint) {
+            readVarint(data, obj, dis);
+            return;
+        }
+
+        FieldAccessor accessor = data.accessor;
+        switch (accessor.kind) {
+            case BOOLEAN:
+                accessor.setBoolean(obj, dis.readBoolean());
+                break;
+            case BYTE:
+                accessor.setByte(obj, dis.readByte());
+                break;
+            case SHORT:
+                accessor.setShort(obj, dis.readShort());
+                break;
+            case CHAR:
+                accessor.setChar(obj, dis.readChar());
+                break;
+            case INT:
+                accessor.setInt(obj, dis.readInt());
+                break;
+            case LONG:
+                accessor.setLong(obj, dis.readLong());
+                break;
+            case FLOAT:
+                accessor.setFloat(obj, dis.readFloat());
+                break;
+            case DOUBLE:
+                accessor.setDouble(obj, dis.readDouble());
+                break;
+            default:
+                accessor.set(obj, deserialize(accessor.type, dis, EfficientInputStream.reuse(dis) ? accessor.get(obj) : null));
+        }
+    }
+
+    static void writeVarint(FieldData data, Object obj, DataOutputStream dos) throws IOException {
+        FieldAccessor accessor = data.accessor;
+        switch (accessor.kind) {
+            case SHORT:
+                VarInt.writeSignedInt(dos, accessor.getShort(obj));
+                return;
+            case CHAR:
+                VarInt.writeUnsignedInt(dos, accessor.getChar(obj));
+                return;
+            case INT:
+                VarInt.writeSignedInt(dos, accessor.getInt(obj));
+                return;
+            case LONG:
+                VarInt.writeSignedLong(dos, accessor.getLong(obj));
+                return;
+        }
+
+        Object value = accessor.get(obj);
+        if (value == null && isBoxedVarint(accessor.type)) {
+            throw new EfficientIOException(new EfficientException("Tried to serialize null object"));
+        }
+        if (accessor.type == Short.class) {
+            VarInt.writeSignedInt(dos, (Short) value);
+        } else if (accessor.type == Character.class) {
+            VarInt.writeUnsignedInt(dos, (Character) value);
+        } else if (accessor.type == Integer.class) {
+            VarInt.writeSignedInt(dos, (Integer) value);
+        } else if (accessor.type == Long.class) {
+            VarInt.writeSignedLong(dos, (Long) value);
+        } else {
+            throw notVarint(data);
+        }
+    }
+
+    static void readVarint(FieldData data, Object obj, DataInputStream dis) throws IOException {
+        FieldAccessor accessor = data.accessor;
+        switch (accessor.kind) {
+            case SHORT:
+                accessor.setShort(obj, (short) VarInt.readSignedInt(dis));
+                return;
+            case CHAR:
+                accessor.setChar(obj, (char) VarInt.readUnsignedInt(dis));
+                return;
+            case INT:
+                accessor.setInt(obj, VarInt.readSignedInt(dis));
+                return;
+            case LONG:
+                accessor.setLong(obj, VarInt.readSignedLong(dis));
+                return;
+        }
+
+        if (accessor.type == Short.class) {
+            accessor.set(obj, (short) VarInt.readSignedInt(dis));
+        } else if (accessor.type == Character.class) {
+            accessor.set(obj, (char) VarInt.readUnsignedInt(dis));
+        } else if (accessor.type == Integer.class) {
+            accessor.set(obj, VarInt.readSignedInt(dis));
+        } else if (accessor.type == Long.class) {
+            accessor.set(obj, VarInt.readSignedLong(dis));
+        } else {
+            throw notVarint(data);
+        }
     }
 
-    private static List<FieldData> getEfficientFields(Class<?> clazz) {
-        return Arrays.stream(clazz.getDeclaredFields())
-                .filter(field -> field.isAnnotationPresent(Efficient.class))
-                .sorted(Comparator.comparing(Field::getName))
-                .map(field -> {
-                    Efficient eff = field.getAnnotation(Efficient.class);
-                    return new FieldData(field, eff);
-                })
-                .collect(Collectors.toList());
+    private static boolean isBoxedVarint(Class<?> type) {
+        return type == Short.class || type == Character.class || type == Integer.class || type == Long.class;
+    }
+
+    private static EfficientIOException notVarint(FieldData data) {
+        return new EfficientIOException(new EfficientException("Field " + data.field.getName() + " in class " + data.field.getDeclaringClass().getName() + " is marked as varint, but is not an integer type"));
+    }
+
+    static Values getDeltaValues(FieldData data, Object[] elements) throws IOException {
+        FieldAccessor accessor = data.accessor;
+        long[] vals = new long[elements.length];
+
+        // The built-in int and long delta values are read straight into the long array
+        if (data.deltaValue == intDelta && accessor.kind == ValueKind.INT) {
+            for (int i = 0; i < vals.length; i++) vals[i] = accessor.getInt(elements[i]);
+            return new Values(vals);
+        }
+        if (data.deltaValue == longDelta && accessor.kind == ValueKind.LONG) {
+            for (int i = 0; i < vals.length; i++) vals[i] = accessor.getLong(elements[i]);
+            return new Values(vals);
+        }
+        if (data.deltaValue == doubleBitsDelta && accessor.kind == ValueKind.DOUBLE) {
+            for (int i = 0; i < vals.length; i++) vals[i] = Double.doubleToRawLongBits(accessor.getDouble(elements[i]));
+            return new Values(vals);
+        }
+        if (data.deltaValue == floatBitsDelta && accessor.kind == ValueKind.FLOAT) {
+            for (int i = 0; i < vals.length; i++) vals[i] = Float.floatToRawIntBits(accessor.getFloat(elements[i])) & 0xFFFFFFFFL;
+            return new Values(vals);
+        }
+
+        Object[] rawVals = new Object[elements.length];
+        for (int i = 0; i < rawVals.length; i++) {
+            rawVals[i] = accessor.get(elements[i]);
+        }
+        return data.deltaValue.getValues(rawVals);
+    }
+
+    static void setDeltaValues(FieldData data, Object[] elements, Values v) throws IOException {
+        FieldAccessor accessor = data.accessor;
+        long[] vals = v.values;
+
+        if (data.deltaValue == intDelta && accessor.kind == ValueKind.INT) {
+            for (int i = 0; i < elements.length; i++) accessor.setInt(elements[i], (int) vals[i]);
+            return;
+        }
+        if (data.deltaValue == longDelta && accessor.kind == ValueKind.LONG) {
+            for (int i = 0; i < elements.length; i++) accessor.setLong(elements[i], vals[i]);
+            return;
+        }
+        if (data.deltaValue == doubleBitsDelta && accessor.kind == ValueKind.DOUBLE) {
+            for (int i = 0; i < elements.length; i++) accessor.setDouble(elements[i], Double.longBitsToDouble(vals[i]));
+            return;
+        }
+        if (data.deltaValue == floatBitsDelta && accessor.kind == ValueKind.FLOAT) {
+            for (int i = 0; i < elements.length; i++) accessor.setFloat(elements[i], Float.intBitsToFloat((int) vals[i]));
+            return;
+        }
+
+        Object[] rawValues = data.deltaValue.convertValues(v);
+        for (int i = 0; i < elements.length; i++) {
+            accessor.set(elements[i], rawValues[i]);
+        }
     }
 }
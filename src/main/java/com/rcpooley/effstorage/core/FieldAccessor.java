@@ -0,0 +1,213 @@
+package com.rcpooley.effstorage.core;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+final class FieldAccessor {
+
+    final Field field;
+
+    final Class<?> type;
+
+    final ValueKind kind;
+
+    // Handles typed exactly as (Object)T and (Object, T)void so primitives never get boxed
+    private final MethodHandle getter;
+
+    private final MethodHandle setter;
+
+    // Handles typed as (Object)Object and (Object, Object)void for boxed access
+    private final MethodHandle boxedGetter;
+
+    private final MethodHandle boxedSetter;
+
+    FieldAccessor(Field field) {
+        this.field = field;
+        this.type = field.getType();
+        this.kind = ValueKind.of(type);
+
+        MethodHandle get;
+        MethodHandle set;
+        try {
+            field.setAccessible(true);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            get = lookup.unreflectGetter(field);
+            set = lookup.unreflectSetter(field);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Cannot access field " + field.getName() + " in class " + field.getDeclaringClass().getName(), e);
+        }
+
+        // Static fields take no instance, so they are given one to ignore like reflection does
+        if (Modifier.isStatic(field.getModifiers())) {
+            get = MethodHandles.dropArguments(get, 0, Object.class);
+            set = MethodHandles.dropArguments(set, 0, Object.class);
+        }
+
+        Class<?> exact = kind == ValueKind.OBJECT ? Object.class : type;
+        this.getter = get.asType(MethodType.methodType(exact, Object.class));
+        this.setter = set.asType(MethodType.methodType(void.class, Object.class, exact));
+        this.boxedGetter = get.asType(MethodType.methodType(Object.class, Object.class));
+        this.boxedSetter = set.asType(MethodType.methodType(void.class, Object.class, Object.class));
+    }
+
+    MethodHandle getterHandle() {
+        return getter;
+    }
+
+    MethodHandle setterHandle() {
+        return setter;
+    }
+
+    Object get(Object obj) {
+        try {
+            return boxedGetter.invokeExact(obj);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    void set(Object obj, Object value) {
+        try {
+            boxedSetter.invokeExact(obj, value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    boolean getBoolean(Object obj) {
+        try {
+            return (boolean) getter.invokeExact(obj);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    void setBoolean(Object obj, boolean value) {
+        try {
+            setter.invokeExact(obj, value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    byte getByte(Object obj) {
+        try {
+            return (byte) getter.invokeExact(obj);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    void setByte(Object obj, byte value) {
+        try {
+            setter.invokeExact(obj, value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    short getShort(Object obj) {
+        try {
+            return (short) getter.invokeExact(obj);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    void setShort(Object obj, short value) {
+        try {
+            setter.invokeExact(obj, value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    char getChar(Object obj) {
+        try {
+            return (char) getter.invokeExact(obj);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    void setChar(Object obj, char value) {
+        try {
+            setter.invokeExact(obj, value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    int getInt(Object obj) {
+        try {
+            return (int) getter.invokeExact(obj);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    void setInt(Object obj, int value) {
+        try {
+            setter.invokeExact(obj, value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    long getLong(Object obj) {
+        try {
+            return (long) getter.invokeExact(obj);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    void setLong(Object obj, long value) {
+        try {
+            setter.invokeExact(obj, value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    float getFloat(Object obj) {
+        try {
+            return (float) getter.invokeExact(obj);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    void setFloat(Object obj, float value) {
+        try {
+            setter.invokeExact(obj, value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    double getDouble(Object obj) {
+        try {
+            return (double) getter.invokeExact(obj);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    void setDouble(Object obj, double value) {
+        try {
+            setter.invokeExact(obj, value);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    private static RuntimeException propagate(Throwable t) {
+        if (t instanceof RuntimeException) return (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        return new IllegalStateException(t);
+    }
+}
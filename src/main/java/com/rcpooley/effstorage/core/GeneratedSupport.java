@@ -0,0 +1,73 @@
+package com.rcpooley.effstorage.core;
+
+import com.rcpooley.effstorage.bitio.BitReader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+
+// Used by serializers generated by EfficientProcessor to reach private fields and constructors.
+// Handles are resolved once when the generated class initializes.
+public final class GeneratedSupport {
+
+    private GeneratedSupport() {}
+
+    public static MethodHandle getter(Class<?> type, String name) {
+        try {
+            return MethodHandles.lookup().unreflectGetter(accessibleField(type, name));
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static MethodHandle setter(Class<?> type, String name) {
+        try {
+            return MethodHandles.lookup().unreflectSetter(accessibleField(type, name));
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static MethodHandle constructor(Class<?> type) {
+        try {
+            Constructor<?> c = type.getDeclaredConstructor();
+            c.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(c);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Lengths follow the options of the call the serializer runs under
+    public static void writeLength(DataOutputStream dos, int len) throws IOException {
+        EfficientOutputStream.writeLength(dos, len);
+    }
+
+    public static int readLength(DataInputStream dis) throws IOException {
+        return EfficientInputStream.readLength(dis);
+    }
+
+    public static BitReader newBitReader(DataInputStream dis) {
+        return EfficientInputStream.newBitReader(dis);
+    }
+
+    public static RuntimeException propagate(Throwable t) {
+        if (t instanceof RuntimeException) return (RuntimeException) t;
+        if (t instanceof Error) throw (Error) t;
+        return new IllegalStateException(t);
+    }
+
+    private static Field accessibleField(Class<?> type, String name) {
+        try {
+            Field field = type.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
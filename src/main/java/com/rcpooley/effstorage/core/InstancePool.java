@@ -0,0 +1,8 @@
+package com.rcpooley.effstorage.core;
+
+// Hands deserialize instances of @Efficient classes to fill in, in place of constructing new ones
+public interface InstancePool {
+
+    // An instance of exactly type, whose fields will be overwritten, or null to have one constructed
+    Object take(Class<?> type);
+}
@@ -0,0 +1,25 @@
+package com.rcpooley.effstorage.core;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+final class NoCodec implements Codec {
+
+    @Override
+    public int id() {
+        return 0;
+    }
+
+    @Override
+    public byte[] compress(byte[] src, int off, int len) {
+        return Arrays.copyOfRange(src, off, off + len);
+    }
+
+    @Override
+    public void decompress(byte[] src, int off, int len, byte[] dst, int dstOff, int dstLen) throws IOException {
+        if (len != dstLen) {
+            throw new IOException("Stored block of " + len + " bytes, expected " + dstLen);
+        }
+        System.arraycopy(src, off, dst, dstOff, len);
+    }
+}
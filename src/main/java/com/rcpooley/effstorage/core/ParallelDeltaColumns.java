@@ -0,0 +1,226 @@
+package com.rcpooley.effstorage.core;
+
+import com.rcpooley.effstorage.bitio.BitReader;
+import com.rcpooley.effstorage.bitio.BitWriter;
+import com.rcpooley.effstorage.core.ClassPlan.FieldData;
+import com.rcpooley.effstorage.core.EfficientDeltaValue.Values;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+// Encodes and decodes the storeByDelta columns of an object array on an executor. Columns are cut into parts that
+// are encoded on their own and stitched back together in order, so the bytes match the sequential encoding.
+// Tasks never wait on other tasks; every join happens on the calling thread.
+final class ParallelDeltaColumns {
+
+    interface Task<T> {
+        T call() throws IOException;
+    }
+
+    // An encoded part, and for blocked columns the lengths of the blocks in it
+    private static final class Bits {
+
+        final byte[] bytes;
+
+        final long bitCount;
+
+        final int[] blockLengths;
+
+        Bits(byte[] bytes, long bitCount, int[] blockLengths) {
+            this.bytes = bytes;
+            this.bitCount = bitCount;
+            this.blockLengths = blockLengths;
+        }
+    }
+
+    private ParallelDeltaColumns() {}
+
+    static void write(BitWriter bw, FieldData[] fields, Object[] elements, EfficientOptions options) throws IOException {
+        Executor executor = options.getExecutor();
+        int chunkSize = options.getParallelChunkSize();
+
+        // Pull the values of every column at once
+        List<CompletableFuture<Values>> pulled = new ArrayList<>();
+        for (FieldData data : fields) {
+            pulled.add(submit(() -> EfficientStorage.getDeltaValues(data, elements), executor));
+        }
+        List<Values> values = new ArrayList<>();
+        for (CompletableFuture<Values> future : pulled) {
+            values.add(join(future));
+        }
+
+        // Then encode the parts of every column at once
+        List<List<CompletableFuture<Bits>>> columns = new ArrayList<>();
+        for (int c = 0; c < fields.length; c++) {
+            FieldData data = fields[c];
+            Values v = values.get(c);
+            List<CompletableFuture<Bits>> parts = new ArrayList<>();
+
+            if (data.blockSize > 0) {
+                int blocks = DeltaColumn.blockCount(elements.length, data.blockSize);
+                int perTask = Math.max(1, chunkSize / data.blockSize);
+                for (int from = 0; from < blocks; from += perTask) {
+                    int start = from;
+                    int end = Math.min(blocks, from + perTask);
+                    parts.add(submit(() -> encodeBlocks(data, v.values, start, end), executor));
+                }
+            } else {
+                for (DeltaColumn.Part part : DeltaColumn.parts(data.deltaValue, data.deltaEncoding, v, chunkSize)) {
+                    parts.add(submit(() -> encode(part), executor));
+                }
+            }
+            columns.add(parts);
+        }
+
+        // Stitch the parts together in order, laying blocked columns out as DeltaColumn does
+        for (int c = 0; c < fields.length; c++) {
+            FieldData data = fields[c];
+            List<CompletableFuture<Bits>> parts = columns.get(c);
+
+            if (data.blockSize > 0) {
+                List<Bits> encoded = new ArrayList<>();
+                for (CompletableFuture<Bits> part : parts) {
+                    encoded.add(join(part));
+                }
+
+                bw.align();
+                if (data.deltaValue.useScale()) bw.writeBits(values.get(c).scale, 32);
+                for (Bits bits : encoded) {
+                    for (int length : bits.blockLengths) {
+                        bw.writeBits(length, 32);
+                    }
+                }
+                for (Bits bits : encoded) {
+                    bw.writeBytes(bits.bytes, 0, bits.bytes.length);
+                }
+            } else {
+                for (CompletableFuture<Bits> part : parts) {
+                    Bits bits = join(part);
+                    bw.writeBits(bits.bytes, bits.bitCount);
+                }
+            }
+        }
+    }
+
+    static void read(BitReader br, FieldData[] fields, Object[] elements, EfficientOptions options) throws IOException {
+        Executor executor = options.getExecutor();
+        int chunkSize = options.getParallelChunkSize();
+        int len = elements.length;
+
+        // The columns follow one another, so each is read off the stream in turn; blocked ones are then decoded in
+        // parallel through their directory, and every column is set on the elements as soon as it is ready
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (FieldData data : fields) {
+            CompletableFuture<Values> values;
+            if (data.blockSize > 0) {
+                values = readBlocks(br, data, len, executor, chunkSize);
+            } else {
+                values = CompletableFuture.completedFuture(DeltaColumn.read(br, data.deltaValue, data.deltaEncoding, 0, len));
+            }
+
+            pending.add(values.thenAcceptAsync(v -> unchecked(() -> {
+                EfficientStorage.setDeltaValues(data, elements, v);
+                return null;
+            }), executor));
+        }
+
+        for (CompletableFuture<Void> future : pending) {
+            join(future);
+        }
+    }
+
+    private static CompletableFuture<Values> readBlocks(BitReader br, FieldData data, int len, Executor executor, int chunkSize) throws IOException {
+        int blockSize = data.blockSize;
+        int blocks = DeltaColumn.blockCount(len, blockSize);
+
+        br.align();
+        int scale = data.deltaValue.useScale() ? br.readBits(32) : 0;
+        int[] lengths = new int[blocks];
+        long total = 0;
+        for (int b = 0; b < blocks; b++) {
+            lengths[b] = br.readBits(32);
+            if (lengths[b] < 0) {
+                throw new IOException("Negative block length " + lengths[b]);
+            }
+            total += lengths[b];
+        }
+        if (total > Integer.MAX_VALUE) {
+            throw new IOException("Delta column of " + total + " bytes is too large");
+        }
+
+        byte[] bytes = new byte[(int) total];
+        br.readBytes(bytes, 0, bytes.length);
+
+        long[] vals = new long[len];
+        int perTask = Math.max(1, chunkSize / blockSize);
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        int pos = 0;
+        for (int from = 0; from < blocks; from += perTask) {
+            int start = from;
+            int end = Math.min(blocks, from + perTask);
+            int startPos = pos;
+            for (int b = start; b < end; b++) {
+                pos += lengths[b];
+            }
+
+            tasks.add(submit(() -> {
+                int p = startPos;
+                for (int b = start; b < end; b++) {
+                    int off = b * blockSize;
+                    BitReader blockReader = new BitReader(ByteBuffer.wrap(bytes, p, lengths[b]));
+                    DeltaColumn.readSegment(blockReader, data.deltaValue, data.deltaEncoding, vals, off, Math.min(blockSize, len - off));
+                    p += lengths[b];
+                }
+                return null;
+            }, executor));
+        }
+
+        return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> new Values(vals, scale));
+    }
+
+    private static Bits encode(DeltaColumn.Part part) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BitWriter bw = new BitWriter(out);
+        part.write(bw);
+        long bitCount = bw.bitCount();
+        bw.finish();
+        return new Bits(out.toByteArray(), bitCount, null);
+    }
+
+    private static Bits encodeBlocks(FieldData data, long[] vals, int from, int to) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] lengths = DeltaColumn.encodeBlocks(out, data.deltaValue, data.deltaEncoding, data.blockSize, vals, from, to);
+        byte[] bytes = out.toByteArray();
+        return new Bits(bytes, bytes.length * 8L, lengths);
+    }
+
+    static <T> CompletableFuture<T> submit(Task<T> task, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> unchecked(task), executor);
+    }
+
+    private static <T> T unchecked(Task<T> task) {
+        try {
+            return task.call();
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.rcpooley.effstorage.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+
+// Bulk codecs for primitive arrays. The layout matches writing each element through DataOutputStream:
+// a length followed by the big-endian values, packed through a bounded chunk buffer.
+final class PrimitiveArrays {
+
+    private static final int CHUNK_BYTES = 8192;
+
+    private PrimitiveArrays() {}
+
+    static int width(ValueKind kind) {
+        switch (kind) {
+            case BOOLEAN:
+            case BYTE:
+                return 1;
+            case SHORT:
+            case CHAR:
+                return 2;
+            case INT:
+            case FLOAT:
+                return 4;
+            default:
+                return 8;
+        }
+    }
+
+    static void write(Object array, ValueKind kind, DataOutputStream dos) throws IOException {
+        EfficientOutputStream.writeLength(dos, Array.getLength(array));
+        writeValues(array, kind, dos);
+    }
+
+    // The values alone, for when the length is known from elsewhere
+    static void writeValues(Object array, ValueKind kind, DataOutputStream dos) throws IOException {
+        int len = Array.getLength(array);
+        if (len == 0) return;
+
+        if (kind == ValueKind.BYTE) {
+            dos.write((byte[]) array, 0, len);
+            return;
+        }
+
+        int width = width(kind);
+        int perChunk = CHUNK_BYTES / width;
+        byte[] buf = new byte[Math.min(len, perChunk) * width];
+        for (int off = 0; off < len; off += perChunk) {
+            int n = Math.min(perChunk, len - off);
+            encode(array, kind, off, n, buf);
+            dos.write(buf, 0, n * width);
+        }
+    }
+
+    static Object read(ValueKind kind, DataInputStream dis) throws IOException {
+        return read(kind, dis, null);
+    }
+
+    // Reads into existing when it has the stored length
+    static Object read(ValueKind kind, DataInputStream dis, Object existing) throws IOException {
+        int len = EfficientInputStream.readLength(dis);
+        return readValues(existing != null && Array.getLength(existing) == len ? existing : newArray(kind, len), kind, dis);
+    }
+
+    static Object readValues(ValueKind kind, int len, DataInputStream dis) throws IOException {
+        return readValues(newArray(kind, len), kind, dis);
+    }
+
+    static Object readValues(Object array, ValueKind kind, DataInputStream dis) throws IOException {
+        int len = Array.getLength(array);
+        if (len == 0) return array;
+
+        if (kind == ValueKind.BYTE) {
+            dis.readFully((byte[]) array);
+            return array;
+        }
+
+        int width = width(kind);
+        int perChunk = CHUNK_BYTES / width;
+        byte[] buf = new byte[Math.min(len, perChunk) * width];
+        for (int off = 0; off < len; off += perChunk) {
+            int n = Math.min(perChunk, len - off);
+            dis.readFully(buf, 0, n * width);
+            decode(buf, kind, array, off, n);
+        }
+        return array;
+    }
+
+    static Object newArray(ValueKind kind, int len) {
+        switch (kind) {
+            case BOOLEAN:
+                return new boolean[len];
+            case BYTE:
+                return new byte[len];
+            case SHORT:
+                return new short[len];
+            case CHAR:
+                return new char[len];
+            case INT:
+                return new int[len];
+            case LONG:
+                return new long[len];
+            case FLOAT:
+                return new float[len];
+            case DOUBLE:
+                return new double[len];
+            default:
+                throw new IllegalArgumentException("Not a primitive kind: " + kind);
+        }
+    }
+
+    // Gathers a primitive field of every element into an array
+    static Object getColumn(FieldAccessor accessor, Object[] elements) {
+        int len = elements.length;
+        switch (accessor.kind) {
+            case BOOLEAN: {
+                boolean[] a = new boolean[len];
+                for (int i = 0; i < len; i++) a[i] = accessor.getBoolean(elements[i]);
+                return a;
+            }
+            case BYTE: {
+                byte[] a = new byte[len];
+                for (int i = 0; i < len; i++) a[i] = accessor.getByte(elements[i]);
+                return a;
+            }
+            case SHORT: {
+                short[] a = new short[len];
+                for (int i = 0; i < len; i++) a[i] = accessor.getShort(elements[i]);
+                return a;
+            }
+            case CHAR: {
+                char[] a = new char[len];
+                for (int i = 0; i < len; i++) a[i] = accessor.getChar(elements[i]);
+                return a;
+            }
+            case INT: {
+                int[] a = new int[len];
+                for (int i = 0; i < len; i++) a[i] = accessor.getInt(elements[i]);
+                return a;
+            }
+            case LONG: {
+                long[] a = new long[len];
+                for (int i = 0; i < len; i++) a[i] = accessor.getLong(elements[i]);
+                return a;
+            }
+            case FLOAT: {
+                float[] a = new float[len];
+                for (int i = 0; i < len; i++) a[i] = accessor.getFloat(elements[i]);
+                return a;
+            }
+            case DOUBLE: {
+                double[] a = new double[len];
+                for (int i = 0; i < len; i++) a[i] = accessor.getDouble(elements[i]);
+                return a;
+            }
+            default:
+                throw new IllegalArgumentException("Not a primitive kind: " + accessor.kind);
+        }
+    }
+
+    static void setColumn(FieldAccessor accessor, Object[] elements, Object array) {
+        int len = elements.length;
+        switch (accessor.kind) {
+            case BOOLEAN: {
+                boolean[] a = (boolean[]) array;
+                for (int i = 0; i < len; i++) accessor.setBoolean(elements[i], a[i]);
+                break;
+            }
+            case BYTE: {
+                byte[] a = (byte[]) array;
+                for (int i = 0; i < len; i++) accessor.setByte(elements[i], a[i]);
+                break;
+            }
+            case SHORT: {
+                short[] a = (short[]) array;
+                for (int i = 0; i < len; i++) accessor.setShort(elements[i], a[i]);
+                break;
+            }
+            case CHAR: {
+                char[] a = (char[]) array;
+                for (int i = 0; i < len; i++) accessor.setChar(elements[i], a[i]);
+                break;
+            }
+            case INT: {
+                int[] a = (int[]) array;
+                for (int i = 0; i < len; i++) accessor.setInt(elements[i], a[i]);
+                break;
+            }
+            case LONG: {
+                long[] a = (long[]) array;
+                for (int i = 0; i < len; i++) accessor.setLong(elements[i], a[i]);
+                break;
+            }
+            case FLOAT: {
+                float[] a = (float[]) array;
+                for (int i = 0; i < len; i++) accessor.setFloat(elements[i], a[i]);
+                break;
+            }
+            case DOUBLE: {
+                double[] a = (double[]) array;
+                for (int i = 0; i < len; i++) accessor.setDouble(elements[i], a[i]);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Not a primitive kind: " + accessor.kind);
+        }
+    }
+
+    static void encode(Object array, ValueKind kind, int off, int n, byte[] buf) {
+        int p = 0;
+        switch (kind) {
+            case BOOLEAN: {
+                boolean[] a = (boolean[]) array;
+                for (int i = off; i < off + n; i++) buf[p++] = (byte) (a[i] ? 1 : 0);
+                break;
+            }
+            case BYTE:
+                System.arraycopy(array, off, buf, 0, n);
+                break;
+            case SHORT: {
+                short[] a = (short[]) array;
+                for (int i = off; i < off + n; i++) p = putShort(buf, p, a[i]);
+                break;
+            }
+            case CHAR: {
+                char[] a = (char[]) array;
+                for (int i = off; i < off + n; i++) p = putShort(buf, p, a[i]);
+                break;
+            }
+            case INT: {
+                int[] a = (int[]) array;
+                for (int i = off; i < off + n; i++) p = putInt(buf, p, a[i]);
+                break;
+            }
+            case LONG: {
+                long[] a = (long[]) array;
+                for (int i = off; i < off + n; i++) p = putLong(buf, p, a[i]);
+                break;
+            }
+            case FLOAT: {
+                float[] a = (float[]) array;
+                for (int i = off; i < off + n; i++) p = putInt(buf, p, Float.floatToIntBits(a[i]));
+                break;
+            }
+            case DOUBLE: {
+                double[] a = (double[]) array;
+                for (int i = off; i < off + n; i++) p = putLong(buf, p, Double.doubleToLongBits(a[i]));
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Not a primitive kind: " + kind);
+        }
+    }
+
+    static void decode(byte[] buf, ValueKind kind, Object array, int off, int n) {
+        int p = 0;
+        switch (kind) {
+            case BOOLEAN: {
+                boolean[] a = (boolean[]) array;
+                for (int i = off; i < off + n; i++) a[i] = buf[p++] != 0;
+                break;
+            }
+            case BYTE:
+                System.arraycopy(buf, 0, array, off, n);
+                break;
+            case SHORT: {
+                short[] a = (short[]) array;
+                for (int i = off; i < off + n; i++, p += 2) a[i] = (short) getShort(buf, p);
+                break;
+            }
+            case CHAR: {
+                char[] a = (char[]) array;
+                for (int i = off; i < off + n; i++, p += 2) a[i] = (char) getShort(buf, p);
+                break;
+            }
+            case INT: {
+                int[] a = (int[]) array;
+                for (int i = off; i < off + n; i++, p += 4) a[i] = getInt(buf, p);
+                break;
+            }
+            case LONG: {
+                long[] a = (long[]) array;
+                for (int i = off; i < off + n; i++, p += 8) a[i] = getLong(buf, p);
+                break;
+            }
+            case FLOAT: {
+                float[] a = (float[]) array;
+                for (int i = off; i < off + n; i++, p += 4) a[i] = Float.intBitsToFloat(getInt(buf, p));
+                break;
+            }
+            case DOUBLE: {
+                double[] a = (double[]) array;
+                for (int i = off; i < off + n; i++, p += 8) a[i] = Double.longBitsToDouble(getLong(buf, p));
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Not a primitive kind: " + kind);
+        }
+    }
+
+    private static int putShort(byte[] buf, int p, int v) {
+        buf[p] = (byte) (v >>> 8);
+        buf[p + 1] = (byte) v;
+        return p + 2;
+    }
+
+    private static int putInt(byte[] buf, int p, int v) {
+        buf[p] = (byte) (v >>> 24);
+        buf[p + 1] = (byte) (v >>> 16);
+        buf[p + 2] = (byte) (v >>> 8);
+        buf[p + 3] = (byte) v;
+        return p + 4;
+    }
+
+    private static int putLong(byte[] buf, int p, long v) {
+        putInt(buf, p, (int) (v >>> 32));
+        return putInt(buf, p + 4, (int) v);
+    }
+
+    private static int getShort(byte[] buf, int p) {
+        return ((buf[p] & 0xFF) << 8) | (buf[p + 1] & 0xFF);
+    }
+
+    private static int getInt(byte[] buf, int p) {
+        return ((buf[p] & 0xFF) << 24)
+                | ((buf[p + 1] & 0xFF) << 16)
+                | ((buf[p + 2] & 0xFF) << 8)
+                | (buf[p + 3] & 0xFF);
+    }
+
+    private static long getLong(byte[] buf, int p) {
+        return ((long) getInt(buf, p) << 32) | (getInt(buf, p + 4) & 0xFFFFFFFFL);
+    }
+}
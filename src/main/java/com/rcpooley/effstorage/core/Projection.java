@@ -0,0 +1,56 @@
+package com.rcpooley.effstorage.core;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+// The fields to decode from an array of a columnar class. The columns of every other field are skipped over and
+// those fields are left at their defaults. Fields of nested objects are named by path, such as "trader.name".
+public final class Projection {
+
+    // A field mapped to null is read whole
+    private final Map<String, Projection> fields = new HashMap<>();
+
+    private Projection() {}
+
+    public static Projection of(String... paths) {
+        Projection projection = new Projection();
+        for (String path : paths) {
+            projection.add(path, path);
+        }
+        return projection;
+    }
+
+    private void add(String path, String fullPath) {
+        int dot = path.indexOf('.');
+        String name = dot < 0 ? path : path.substring(0, dot);
+        if (name.isEmpty() || dot == path.length() - 1) {
+            throw new IllegalArgumentException("Invalid field path: " + fullPath);
+        }
+
+        if (dot < 0) {
+            fields.put(name, null);
+        } else if (!fields.containsKey(name) || fields.get(name) != null) {
+            Projection nested = fields.get(name);
+            if (nested == null) {
+                nested = new Projection();
+                fields.put(name, nested);
+            }
+            nested.add(path.substring(dot + 1), fullPath);
+        }
+    }
+
+    public boolean includes(String field) {
+        return fields.containsKey(field);
+    }
+
+    public Set<String> fields() {
+        return Collections.unmodifiableSet(fields.keySet());
+    }
+
+    // What to read of a nested field, or null when the whole field is wanted
+    Projection nested(String field) {
+        return fields.get(field);
+    }
+}
@@ -0,0 +1,133 @@
+package com.rcpooley.effstorage.core;
+
+import com.rcpooley.effstorage.bitio.VarInt;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+// Strings are a length followed by that many bytes of UTF-8. With the string dictionary enabled each string is
+// preceded by a varint reference: 0 for a string written in full, or 1 + the index of an earlier one.
+final class StringCodec {
+
+    // Both sides stop adding entries here, so payloads of mostly unique strings do not grow the dictionary forever
+    static final int DICTIONARY_LIMIT = 1 << 16;
+
+    private StringCodec() {}
+
+    static void write(String s, DataOutputStream dos) throws IOException {
+        EfficientOutputStream eos = dos instanceof EfficientOutputStream ? (EfficientOutputStream) dos : null;
+
+        if (eos != null && eos.options.useStringDictionary()) {
+            Map<String, Integer> dictionary = eos.strings();
+            Integer ref = dictionary.get(s);
+            if (ref != null) {
+                VarInt.writeUnsignedInt(dos, ref + 1);
+                return;
+            }
+            dos.writeByte(0);
+            if (dictionary.size() < DICTIONARY_LIMIT) {
+                dictionary.put(s, dictionary.size());
+            }
+        }
+
+        // A char never takes more than three bytes; surrogate pairs take four for two chars
+        int len = s.length();
+        byte[] buf = eos != null ? eos.scratch(len * 3) : new byte[len * 3];
+        int n = encode(s, buf);
+        EfficientOutputStream.writeLength(dos, n);
+        dos.write(buf, 0, n);
+    }
+
+    static String read(DataInputStream dis) throws IOException {
+        EfficientInputStream eis = dis instanceof EfficientInputStream ? (EfficientInputStream) dis : null;
+
+        if (eis != null && eis.options.useStringDictionary()) {
+            List<String> dictionary = eis.strings();
+            int ref = VarInt.readUnsignedInt(dis);
+            if (ref != 0) {
+                if (ref > dictionary.size()) {
+                    throw new IOException("Unknown string reference " + ref);
+                }
+                return dictionary.get(ref - 1);
+            }
+
+            String s = readString(dis, eis);
+            if (dictionary.size() < DICTIONARY_LIMIT) {
+                dictionary.add(s);
+            }
+            return s;
+        }
+
+        return readString(dis, eis);
+    }
+
+    private static String readString(DataInputStream dis, EfficientInputStream eis) throws IOException {
+        int len = EfficientInputStream.readLength(dis);
+
+        // Heap buffers are decoded in place
+        if (eis != null && eis.buffer != null && eis.buffer.hasArray()) {
+            ByteBuffer buffer = eis.buffer;
+            if (buffer.remaining() < len) throw new EOFException();
+            String s = decode(buffer.array(), buffer.arrayOffset() + buffer.position(), len);
+            buffer.position(buffer.position() + len);
+            return s;
+        }
+
+        byte[] buf = eis != null ? eis.scratch(len) : new byte[len];
+        dis.readFully(buf, 0, len);
+        return decode(buf, 0, len);
+    }
+
+    static int encode(String s, byte[] buf) {
+        int len = s.length();
+        int p = 0;
+        int i = 0;
+
+        // ASCII fast path
+        for (; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) break;
+            buf[p++] = (byte) c;
+        }
+
+        for (; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[p++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[p++] = (byte) (0xC0 | (c >> 6));
+                buf[p++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates become '?', as String.getBytes does
+                if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[p++] = (byte) (0xF0 | (cp >> 18));
+                    buf[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buf[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buf[p++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    buf[p++] = '?';
+                }
+            } else {
+                buf[p++] = (byte) (0xE0 | (c >> 12));
+                buf[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[p++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return p;
+    }
+
+    static String decode(byte[] buf, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            if (buf[i] < 0) return new String(buf, off, len, StandardCharsets.UTF_8);
+        }
+        // Pure ASCII maps byte for char
+        return new String(buf, off, len, StandardCharsets.ISO_8859_1);
+    }
+}
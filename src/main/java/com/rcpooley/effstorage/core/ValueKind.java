@@ -0,0 +1,26 @@
+package com.rcpooley.effstorage.core;
+
+enum ValueKind {
+    BOOLEAN,
+    BYTE,
+    SHORT,
+    CHAR,
+    INT,
+    LONG,
+    FLOAT,
+    DOUBLE,
+    OBJECT;
+
+    static ValueKind of(Class<?> type) {
+        if (!type.isPrimitive()) return OBJECT;
+        if (type == Integer.TYPE) return INT;
+        if (type == Long.TYPE) return LONG;
+        if (type == Double.TYPE) return DOUBLE;
+        if (type == Float.TYPE) return FLOAT;
+        if (type == Byte.TYPE) return BYTE;
+        if (type == Short.TYPE) return SHORT;
+        if (type == Character.TYPE) return CHAR;
+        if (type == Boolean.TYPE) return BOOLEAN;
+        throw new IllegalArgumentException("Not a value type: " + type.getName());
+    }
+}
@@ -0,0 +1,98 @@
+package com.rcpooley.effstorage.bench;
+
+import com.rcpooley.effstorage.core.EfficientSerializer;
+import com.rcpooley.effstorage.core.EfficientStorage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+// Per-value cost of the primitive serializers. "reflective" is the serializer EfficientStorage used to build in
+// its static initializer, looking up and invoking DataOutputStream.writeX on every value.
+// Run with: java -cp target/classes:target/test-classes com.rcpooley.effstorage.bench.BenchPrimitiveSerializers
+public class BenchPrimitiveSerializers {
+
+    private static final int VALUES = 1_000_000;
+
+    private static final int ROUNDS = 10;
+
+    private static final OutputStream NULL_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private static class ReflectiveSerializer implements EfficientSerializer<Object> {
+        String funcName;
+        Class<?> funcParam;
+
+        ReflectiveSerializer(String funcName, Class<?> funcParam) {
+            this.funcName = funcName;
+            this.funcParam = funcParam;
+        }
+
+        @Override
+        public void serialize(Object obj, DataOutputStream dos) {
+            try {
+                Method m = dos.getClass().getMethod("write" + funcName, funcParam);
+                m.invoke(dos, obj);
+            } catch (IllegalAccessException | NoSuchMethodException | InvocationTargetException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public Object deserialize(DataInputStream dis) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Object[] ints = new Object[VALUES];
+        Object[] doubles = new Object[VALUES];
+        for (int i = 0; i < VALUES; i++) {
+            ints[i] = i;
+            doubles[i] = i * 0.5;
+        }
+
+        run("Integer", ints, new ReflectiveSerializer("Int", Integer.TYPE), EfficientStorage.getSerializer(Integer.class));
+        run("Double", doubles, new ReflectiveSerializer("Double", Double.TYPE), EfficientStorage.getSerializer(Double.class));
+
+        // Sanity check that both paths produce the same bytes
+        ByteArrayOutputStream a = new ByteArrayOutputStream();
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        new ReflectiveSerializer("Int", Integer.TYPE).serialize(12345, new DataOutputStream(a));
+        EfficientStorage.getSerializer(Integer.class).serialize(12345, new DataOutputStream(b));
+        System.out.println("identical output: " + Arrays.equals(a.toByteArray(), b.toByteArray()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void run(String name, Object[] values, EfficientSerializer<?> before, EfficientSerializer<?> after) throws IOException {
+        DataOutputStream dos = new DataOutputStream(NULL_STREAM);
+        double beforeNs = Double.MAX_VALUE;
+        double afterNs = Double.MAX_VALUE;
+        for (int r = 0; r < ROUNDS; r++) {
+            beforeNs = Math.min(beforeNs, time((EfficientSerializer<Object>) before, values, dos));
+            afterNs = Math.min(afterNs, time((EfficientSerializer<Object>) after, values, dos));
+        }
+        System.out.printf("%-8s reflective %7.2f ns/value   specialized %7.2f ns/value   %.1fx%n",
+                name, beforeNs, afterNs, beforeNs / afterNs);
+    }
+
+    private static double time(EfficientSerializer<Object> es, Object[] values, DataOutputStream dos) throws IOException {
+        long start = System.nanoTime();
+        for (Object v : values) {
+            es.serialize(v, dos);
+        }
+        return (System.nanoTime() - start) / (double) values.length;
+    }
+}
@@ -0,0 +1,99 @@
+package com.rcpooley.effstorage.bench;
+
+import com.rcpooley.effstorage.core.Efficient;
+import com.rcpooley.effstorage.core.EfficientException;
+import com.rcpooley.effstorage.core.EfficientOptions;
+import com.rcpooley.effstorage.core.EfficientStorage;
+
+import java.util.Random;
+
+// Size and speed of fixed-width versus varint records whose fields and string lengths are mostly small.
+// Run with: java -cp target/classes:target/test-classes com.rcpooley.effstorage.bench.BenchVarInt
+public class BenchVarInt {
+
+    private static final int RECORDS = 200_000;
+
+    private static final int ROUNDS = 10;
+
+    @Efficient
+    public static class Fixed {
+        @Efficient
+        public int id;
+
+        @Efficient
+        public int qty;
+
+        @Efficient
+        public long delta;
+
+        @Efficient
+        public String tag;
+
+        private Fixed() {}
+
+        Fixed(int id, int qty, long delta, String tag) {
+            this.id = id;
+            this.qty = qty;
+            this.delta = delta;
+            this.tag = tag;
+        }
+    }
+
+    @Efficient
+    public static class Varint {
+        @Efficient(varint = true)
+        public int id;
+
+        @Efficient(varint = true)
+        public int qty;
+
+        @Efficient(varint = true)
+        public long delta;
+
+        @Efficient
+        public String tag;
+
+        private Varint() {}
+
+        Varint(int id, int qty, long delta, String tag) {
+            this.id = id;
+            this.qty = qty;
+            this.delta = delta;
+            this.tag = tag;
+        }
+    }
+
+    public static void main(String[] args) throws EfficientException {
+        Random random = new Random(1);
+        Fixed[] fixed = new Fixed[RECORDS];
+        Varint[] varint = new Varint[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            int id = i;
+            int qty = random.nextInt(200);
+            long delta = random.nextInt(2000) - 1000;
+            String tag = "t" + random.nextInt(10);
+            fixed[i] = new Fixed(id, qty, delta, tag);
+            varint[i] = new Varint(id, qty, delta, tag);
+        }
+
+        run("fixed", fixed, new EfficientOptions());
+        run("varint", varint, new EfficientOptions().varintLengths(true));
+    }
+
+    private static void run(String name, Object[] records, EfficientOptions options) throws EfficientException {
+        byte[] data = EfficientStorage.serialize(records, options);
+        double writeNs = Double.MAX_VALUE;
+        double readNs = Double.MAX_VALUE;
+        for (int r = 0; r < ROUNDS; r++) {
+            long start = System.nanoTime();
+            EfficientStorage.serialize(records, options);
+            writeNs = Math.min(writeNs, (System.nanoTime() - start) / (double) records.length);
+
+            start = System.nanoTime();
+            EfficientStorage.deserialize(records.getClass(), data, options);
+            readNs = Math.min(readNs, (System.nanoTime() - start) / (double) records.length);
+        }
+        System.out.printf("%-7s %6.2f bytes/record   write %6.2f ns/record   read %6.2f ns/record%n",
+                name, data.length / (double) records.length, writeNs, readNs);
+    }
+}
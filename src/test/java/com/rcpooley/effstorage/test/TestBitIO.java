@@ -3,12 +3,18 @@ package com.rcpooley.effstorage.test;
 import com.rcpooley.effstorage.bitio.BitReader;
 import com.rcpooley.effstorage.bitio.BitUtil;
 import com.rcpooley.effstorage.bitio.BitWriter;
+import com.rcpooley.effstorage.bitio.VarInt;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
 
 public class TestBitIO {
 
@@ -61,4 +67,116 @@ public class TestBitIO {
         Assert.assertEquals(999, reader.readBits(10));
         Assert.assertEquals(0x34, reader.readBits(8));
     }
+
+    @Test
+    public void testByteBuffer() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BitWriter writer = new BitWriter(baos);
+        writer.writeBits(0x5, 3);
+        writer.writeBits(0x1234567890L, 40);
+        writer.finish();
+        baos.write(0x7F);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+        buffer.put(baos.toByteArray());
+        buffer.flip();
+        BitReader reader = new BitReader(buffer);
+        Assert.assertEquals(0x5, reader.readBits(3));
+        Assert.assertEquals(0x1234567890L, reader.readBitsLong(40));
+        Assert.assertEquals(6, buffer.position());
+        Assert.assertEquals(0x7F, buffer.get());
+    }
+
+    @Test
+    public void testPacked() throws IOException {
+        Random random = new Random(9);
+        for (int width = 0; width <= 64; width++) {
+            long[] values = new long[1000];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = random.nextLong() & BitUtil.getMaskLong(width);
+            }
+
+            ByteArrayOutputStream packed = new ByteArrayOutputStream();
+            BitWriter writer = new BitWriter(packed);
+            writer.writeBits(0x3, 3);
+            writer.writePacked(values, width);
+            writer.finish();
+            packed.write(0x7F);
+
+            ByteArrayOutputStream single = new ByteArrayOutputStream();
+            writer = new BitWriter(single);
+            writer.writeBits(0x3, 3);
+            for (long value : values) {
+                writer.writeBits(value, width);
+            }
+            writer.finish();
+            single.write(0x7F);
+            Assert.assertArrayEquals(single.toByteArray(), packed.toByteArray());
+
+            ByteArrayInputStream bais = new ByteArrayInputStream(packed.toByteArray());
+            BitReader reader = new BitReader(bais);
+            long[] out = new long[values.length];
+            Assert.assertEquals(0x3, reader.readBits(3));
+            reader.readPacked(out, width);
+            Assert.assertArrayEquals(values, out);
+            Assert.assertEquals(0x7F, bais.read());
+        }
+    }
+
+    @Test
+    public void testMixedSingleAndPacked() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BitWriter writer = new BitWriter(baos);
+        writer.writeBits(0x1F, 5);
+        writer.writePacked(new long[]{1, 2, 3, 4, 5}, 1, 3, 7);
+        writer.writeBits(0xABCDEF, 24);
+        writer.finish();
+
+        ByteBuffer buffer = ByteBuffer.wrap(baos.toByteArray());
+        BitReader reader = new BitReader(buffer);
+        long[] out = new long[4];
+        Assert.assertEquals(0x1F, reader.readBits(5));
+        reader.readPacked(out, 1, 3, 7);
+        Assert.assertArrayEquals(new long[]{0, 2, 3, 4}, out);
+        Assert.assertEquals(0xABCDEF, reader.readBits(24));
+        Assert.assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testVarInt() throws IOException {
+        long[] values = {0, 1, -1, 63, -64, 64, 127, 128, 8191, 8192, 16383, 16384, 1L << 35, Integer.MAX_VALUE,
+                Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        int expected = 0;
+        for (long v : values) {
+            VarInt.writeSignedLong(dos, v);
+            VarInt.writeUnsignedLong(dos, v);
+            VarInt.writeSignedInt(dos, (int) v);
+            VarInt.writeUnsignedInt(dos, (int) v);
+            expected += VarInt.sizeOf(VarInt.encodeZigZag(v)) + VarInt.sizeOf(v)
+                    + VarInt.sizeOf(VarInt.encodeZigZag((int) v) & 0xFFFFFFFFL) + VarInt.sizeOf((int) v & 0xFFFFFFFFL);
+        }
+        Assert.assertEquals(expected, dos.size());
+
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        for (long v : values) {
+            Assert.assertEquals(v, VarInt.readSignedLong(dis));
+            Assert.assertEquals(v, VarInt.readUnsignedLong(dis));
+            Assert.assertEquals((int) v, VarInt.readSignedInt(dis));
+            Assert.assertEquals((int) v, VarInt.readUnsignedInt(dis));
+        }
+
+        // 300 is 0b10_0101100
+        baos.reset();
+        VarInt.writeUnsignedInt(dos, 300);
+        Assert.assertArrayEquals(new byte[]{(byte) 0xAC, 0x02}, baos.toByteArray());
+    }
+
+    @Test(expected = EOFException.class)
+    public void testEndOfStream() throws IOException {
+        BitReader reader = new BitReader(new ByteArrayInputStream(new byte[]{1}));
+        reader.readBits(9);
+    }
 }
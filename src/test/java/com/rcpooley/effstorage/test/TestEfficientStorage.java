@@ -1,14 +1,50 @@
 package com.rcpooley.effstorage.test;
 
+import com.rcpooley.effstorage.bitio.BitReader;
+import com.rcpooley.effstorage.bitio.BitWriter;
+import com.rcpooley.effstorage.core.Codec;
+import com.rcpooley.effstorage.core.CompressedBlocks;
+import com.rcpooley.effstorage.core.DeltaColumn;
+import com.rcpooley.effstorage.core.DeltaEncoding;
+import com.rcpooley.effstorage.core.EfficientArrayView;
+import com.rcpooley.effstorage.core.EfficientArrayWriter;
+import com.rcpooley.effstorage.core.EfficientDeltaValue;
 import com.rcpooley.effstorage.core.EfficientException;
+import com.rcpooley.effstorage.core.EfficientFile;
+import com.rcpooley.effstorage.core.EfficientOptions;
+import com.rcpooley.effstorage.core.EfficientSerializer;
 import com.rcpooley.effstorage.core.EfficientStorage;
+import com.rcpooley.effstorage.core.Projection;
 import com.rcpooley.effstorage.test.structs.*;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestEfficientStorage {
 
@@ -131,6 +167,37 @@ public class TestEfficientStorage {
         }
     }
 
+    @Test
+    public void testStaticField() throws EfficientException {
+        Counted.counter = 7;
+        Counted c = new Counted();
+        c.value = 3;
+        byte[] data = EfficientStorage.serialize(c);
+        Assert.assertEquals(8, data.length);
+
+        Counted.counter = 0;
+        Counted res = (Counted) EfficientStorage.deserialize(Counted.class, data);
+        Assert.assertEquals(7, Counted.counter);
+        Assert.assertEquals(3, res.value);
+    }
+
+    @Test
+    public void testUnusableGeneratedSerializer() {
+        // Plans that can't be built fail serialize and deserialize with an EfficientException
+        try {
+            EfficientStorage.serialize(new Stale());
+            Assert.fail();
+        } catch (EfficientException e) {
+            Assert.assertTrue(e.getMessage().contains("Cannot instantiate generated serializer"));
+        }
+        try {
+            EfficientStorage.deserialize(Stale.class, new byte[4]);
+            Assert.fail();
+        } catch (EfficientException e) {
+            Assert.assertTrue(e.getMessage().contains("Cannot instantiate generated serializer"));
+        }
+    }
+
     @Test
     public void testCustomSerializable() throws EfficientException {
         byte[] data = EfficientStorage.serialize(new CustomStruct("hello world"));
@@ -254,4 +321,1121 @@ public class TestEfficientStorage {
             Assert.assertEquals("Tried to serialize null object", e.getMessage());
         }
     }
+
+    @Test
+    public void testCompiledMatchesReflective() throws EfficientException {
+        CompiledPerson[] compiled = new CompiledPerson[3];
+        ReflectivePerson[] reflective = new ReflectivePerson[3];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = new CompiledPerson("p" + i, 20 + i, (byte) i, (short) (i * 2), 4L * i, (char) ('a' + i), 1.5F * i, 2.5 * i, i % 2 == 0, new B(i), 1000L + i * 10);
+            reflective[i] = new ReflectivePerson("p" + i, 20 + i, (byte) i, (short) (i * 2), 4L * i, (char) ('a' + i), 1.5F * i, 2.5 * i, i % 2 == 0, new B(i), 1000L + i * 10);
+        }
+
+        Assert.assertArrayEquals(EfficientStorage.serialize(reflective[1]), EfficientStorage.serialize(compiled[1]));
+
+        byte[] data = EfficientStorage.serialize(compiled);
+        Assert.assertArrayEquals(EfficientStorage.serialize(reflective), data);
+
+        CompiledPerson[] res = (CompiledPerson[]) EfficientStorage.deserialize(CompiledPerson[].class, data);
+        for (int i = 0; i < res.length; i++) {
+            Assert.assertEquals("p" + i, res[i].getName());
+            Assert.assertEquals(20 + i, res[i].getAge());
+            Assert.assertEquals(i, res[i].b);
+            Assert.assertEquals(i * 2, res[i].s);
+            Assert.assertEquals(4L * i, res[i].l);
+            Assert.assertEquals('a' + i, res[i].c);
+            Assert.assertEquals(1.5F * i, res[i].f, 0);
+            Assert.assertEquals(2.5 * i, res[i].d, 0);
+            Assert.assertEquals(i % 2 == 0, res[i].bool);
+            Assert.assertEquals(i, res[i].ref.getVal());
+            Assert.assertEquals(1000L + i * 10, res[i].time);
+        }
+    }
+
+    @Test
+    public void testCompiledNullField() {
+        try {
+            EfficientStorage.serialize(new CompiledPerson(null, 1, (byte) 0, (short) 0, 0, 'a', 0, 0, false, new B(1), 0));
+            Assert.assertTrue(false);
+        } catch (EfficientException e) {
+            Assert.assertEquals("Tried to serialize null object", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testLargePrimitiveArrays() throws EfficientException, IOException {
+        int n = 5000;
+        int[] ints = new int[n];
+        long[] longs = new long[n];
+        double[] doubles = new double[n];
+        char[] chars = new char[n];
+        boolean[] bools = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            ints[i] = i * 31 - 7000;
+            longs[i] = (long) i << 40 | i;
+            doubles[i] = i / 3.0;
+            chars[i] = (char) (i * 13);
+            bools[i] = i % 3 == 0;
+        }
+        doubles[1] = Double.NaN;
+        doubles[2] = Double.NEGATIVE_INFINITY;
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(n);
+        for (double d : doubles) dos.writeDouble(d);
+        Assert.assertArrayEquals(baos.toByteArray(), EfficientStorage.serialize(doubles));
+
+        Assert.assertArrayEquals(ints, (int[]) EfficientStorage.deserialize(int[].class, EfficientStorage.serialize(ints)));
+        Assert.assertArrayEquals(longs, (long[]) EfficientStorage.deserialize(long[].class, EfficientStorage.serialize(longs)));
+        Assert.assertArrayEquals(doubles, (double[]) EfficientStorage.deserialize(double[].class, EfficientStorage.serialize(doubles)), 0);
+        Assert.assertArrayEquals(chars, (char[]) EfficientStorage.deserialize(char[].class, EfficientStorage.serialize(chars)));
+        Assert.assertArrayEquals(bools, (boolean[]) EfficientStorage.deserialize(boolean[].class, EfficientStorage.serialize(bools)));
+    }
+
+    @Test
+    public void testStreams() throws EfficientException {
+        People people = new People(new Person[]{
+                new Person("rob", 20, (byte) 127, (short) 2, 4L, 'z', 3.14F, 15.92, false),
+                new Person("tom", 24, (byte) 126, (short) 3, 5L, 'y', 5.14F, 16.92, true)
+        });
+        byte[] expected = EfficientStorage.serialize(people);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        EfficientStorage.serialize(people, baos);
+        Assert.assertArrayEquals(expected, baos.toByteArray());
+
+        baos = new ByteArrayOutputStream();
+        EfficientStorage.serialize(people, Channels.newChannel(baos));
+        Assert.assertArrayEquals(expected, baos.toByteArray());
+
+        People res = (People) EfficientStorage.deserialize(People.class, new ByteArrayInputStream(expected));
+        Assert.assertEquals("tom", res.getPpl()[1].getName());
+
+        res = (People) EfficientStorage.deserialize(People.class, Channels.newChannel(new ByteArrayInputStream(expected)));
+        Assert.assertEquals(24, res.getPpl()[1].getAge());
+    }
+
+    @Test
+    public void testTruncatedStream() throws EfficientException {
+        byte[] data = Arrays.copyOf(EfficientStorage.serialize(new B(5)), 2);
+        try {
+            EfficientStorage.deserialize(B.class, new ByteArrayInputStream(data));
+            Assert.assertTrue(false);
+        } catch (EfficientException e) {
+            Assert.assertTrue(e.getCause() instanceof EOFException);
+        }
+    }
+
+    @Test
+    public void testByteBuffers() throws EfficientException {
+        StoreByDeltaTypes[] arr = new StoreByDeltaTypes[50];
+        for (int i = 0; i < arr.length; i++) {
+            arr[i] = new StoreByDeltaTypes(i * 3, 1000L - i, BigDecimal.valueOf(i, 2));
+        }
+        byte[] expected = EfficientStorage.serialize(new ArrSBDT(arr));
+
+        for (ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.allocate(4096), ByteBuffer.allocateDirect(4096)}) {
+            // Two payloads back to back must each be consumed exactly
+            EfficientStorage.serialize(new ArrSBDT(arr), buffer);
+            Assert.assertEquals(expected.length, buffer.position());
+            EfficientStorage.serialize(new B(42), buffer);
+            buffer.flip();
+
+            byte[] written = new byte[expected.length];
+            buffer.duplicate().get(written);
+            Assert.assertArrayEquals(expected, written);
+
+            ArrSBDT res = (ArrSBDT) EfficientStorage.deserialize(ArrSBDT.class, buffer);
+            Assert.assertEquals(expected.length, buffer.position());
+            for (int i = 0; i < arr.length; i++) {
+                Assert.assertEquals(arr[i].a, res.sbdt[i].a);
+                Assert.assertEquals(arr[i].b, res.sbdt[i].b);
+                Assert.assertEquals(0, arr[i].c.compareTo(res.sbdt[i].c));
+            }
+            Assert.assertEquals(42, ((B) EfficientStorage.deserialize(B.class, buffer)).getVal());
+            Assert.assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    @Test
+    public void testByteBufferOverflow() {
+        ByteBuffer buffer = ByteBuffer.allocate(6);
+        buffer.put((byte) 1);
+        try {
+            EfficientStorage.serialize(new long[]{1, 2}, buffer);
+            Assert.assertTrue(false);
+        } catch (EfficientException e) {
+            Assert.assertEquals("Buffer too small to serialize [J", e.getMessage());
+            Assert.assertEquals(1, buffer.position());
+        }
+    }
+
+    @Test
+    public void testMappedFile() throws EfficientException, IOException {
+        double[] vals = new double[10000];
+        for (int i = 0; i < vals.length; i++) vals[i] = i * 1.5;
+        Path file = Files.createTempFile("efficient", ".bin");
+        try {
+            Files.write(file, EfficientStorage.serialize(vals));
+            Assert.assertArrayEquals(vals, (double[]) EfficientStorage.deserialize(double[].class, file), 0);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testVarint() throws EfficientException {
+        byte[] small = EfficientStorage.serialize(new Varints((short) -3, 'a', 5, -7L, 100, 1));
+        // 1 + 1 + 1 + 1 + 2 varint bytes and a fixed int
+        Assert.assertEquals(10, small.length);
+
+        long[] longs = {0, 1, -1, 63, -64, 64, Long.MAX_VALUE, Long.MIN_VALUE};
+        int[] ints = {0, -1, 1 << 20, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (long l : longs) {
+            for (int i : ints) {
+                Varints v = new Varints((short) i, (char) i, i, l, -i, i);
+                byte[] data = EfficientStorage.serialize(v);
+                Assert.assertArrayEquals(data, EfficientStorage.serialize(new CompiledVarints((short) i, (char) i, i, l, -i, i)));
+
+                Varints res = (Varints) EfficientStorage.deserialize(Varints.class, data);
+                Assert.assertEquals(v.s, res.s);
+                Assert.assertEquals(v.c, res.c);
+                Assert.assertEquals(v.i, res.i);
+                Assert.assertEquals(v.l, res.l);
+                Assert.assertEquals(v.boxed, res.boxed);
+                Assert.assertEquals(v.fixed, res.fixed);
+
+                CompiledVarints cres = (CompiledVarints) EfficientStorage.deserialize(CompiledVarints.class, data);
+                Assert.assertEquals(v.l, cres.l);
+                Assert.assertEquals(v.i, cres.i);
+                Assert.assertEquals(v.boxed, cres.boxed);
+            }
+        }
+    }
+
+    @Test
+    public void testVarintLengths() throws EfficientException {
+        EfficientOptions options = new EfficientOptions().varintLengths(true);
+        Arr arr = new Arr(new String[]{"a", "bc", ""}, new int[300], new byte[1], new short[1], new long[1],
+                new char[1], new float[1], new double[1], new boolean[1]);
+
+        byte[] fixed = EfficientStorage.serialize(arr);
+        byte[] data = EfficientStorage.serialize(arr, options);
+        // Twelve lengths shrink from four bytes to one, except the 300 which takes two
+        Assert.assertEquals(fixed.length - 35, data.length);
+
+        Arr res = (Arr) EfficientStorage.deserialize(Arr.class, data, options);
+        Assert.assertArrayEquals(arr.str, res.str);
+        Assert.assertArrayEquals(arr.i, res.i);
+        Assert.assertArrayEquals(arr.bool, res.bool);
+
+        ByteBuffer buffer = ByteBuffer.allocate(data.length);
+        EfficientStorage.serialize(arr, buffer, options);
+        buffer.flip();
+        Assert.assertArrayEquals(arr.str, ((Arr) EfficientStorage.deserialize(Arr.class, buffer, options)).str);
+    }
+
+    @Test
+    public void testUtf8Strings() throws EfficientException {
+        // ASCII keeps the original layout: the length, then one byte per char
+        Assert.assertArrayEquals(new byte[]{0, 0, 0, 3, 'a', 'b', 'c'}, EfficientStorage.serialize("abc"));
+
+        String[] strs = {"", "plain", "caf\u00e9", "\u65e5\u672c\u8a9e", "rocket \uD83D\uDE80", "mixed \u00e9\u65e5\uD83D\uDE80 end"};
+        for (String str : strs) {
+            byte[] data = EfficientStorage.serialize(str);
+            Assert.assertEquals(4 + str.getBytes(StandardCharsets.UTF_8).length, data.length);
+            Assert.assertEquals(str, EfficientStorage.deserialize(String.class, data));
+            Assert.assertEquals(str, EfficientStorage.deserialize(String.class, new ByteArrayInputStream(data)));
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data).flip();
+            Assert.assertEquals(str, EfficientStorage.deserialize(String.class, direct));
+        }
+
+        Assert.assertEquals("a?b", EfficientStorage.deserialize(String.class, EfficientStorage.serialize("a\uD800b")));
+    }
+
+    @Test
+    public void testStringDictionary() throws EfficientException {
+        EfficientOptions options = new EfficientOptions().stringDictionary(true);
+        String[] strs = new String[1000];
+        for (int i = 0; i < strs.length; i++) {
+            strs[i] = "symbol-" + (i % 10);
+        }
+
+        byte[] data = EfficientStorage.serialize(strs, options);
+        Assert.assertTrue(data.length * 5 < EfficientStorage.serialize(strs).length);
+
+        String[] res = (String[]) EfficientStorage.deserialize(String[].class, data, options);
+        Assert.assertArrayEquals(strs, res);
+        // Repeats decode to the same instance
+        Assert.assertSame(res[3], res[13]);
+
+        res = (String[]) EfficientStorage.deserialize(String[].class, new ByteArrayInputStream(data), options);
+        Assert.assertArrayEquals(strs, res);
+    }
+
+    @Test
+    public void testDeltaOfDelta() throws EfficientException {
+        // Perfectly periodic samples cost about one bit per column per element
+        Samples[] periodic = new Samples[10000];
+        for (int i = 0; i < periodic.length; i++) {
+            periodic[i] = new Samples(1500000000000L + i * 1000L, 7);
+        }
+        byte[] data = EfficientStorage.serialize(periodic);
+        Assert.assertTrue(data.length < 4 + 12 + 2 * 10000 / 8 + 4);
+        assertSamples(periodic, (Samples[]) EfficientStorage.deserialize(Samples[].class, data));
+
+        // Jitter and jumps of every size, including wrapping ones
+        Random random = new Random(3);
+        long[] jumps = {0, 5, -60, 200, -2000, 1 << 20, Long.MAX_VALUE, Long.MIN_VALUE};
+        Samples[] irregular = new Samples[2000];
+        long time = -50;
+        for (int i = 0; i < irregular.length; i++) {
+            time += 1000 + jumps[random.nextInt(jumps.length)];
+            irregular[i] = new Samples(time, random.nextInt() >> random.nextInt(32));
+        }
+        data = EfficientStorage.serialize(irregular);
+        assertSamples(irregular, (Samples[]) EfficientStorage.deserialize(Samples[].class, new ByteArrayInputStream(data)));
+    }
+
+    private static void assertSamples(Samples[] expected, Samples[] actual) {
+        Assert.assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(expected[i].time, actual[i].time);
+            Assert.assertEquals(expected[i].value, actual[i].value);
+        }
+    }
+
+    @Test
+    public void testXorFloatingPoint() throws EfficientException {
+        double[] specials = {0.0, -0.0, Double.NaN, Double.longBitsToDouble(0x7FF8000000000123L), Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.MIN_VALUE, Double.MAX_VALUE, 1e300, -1e-300};
+        Random random = new Random(5);
+        Readings[] arr = new Readings[3000];
+        double walk = 100;
+        for (int i = 0; i < arr.length; i++) {
+            double d = i % 7 == 0 ? specials[random.nextInt(specials.length)] : (walk += random.nextGaussian());
+            float f = i % 11 == 0 ? Float.intBitsToFloat(0x7FC00001) : (float) walk;
+            arr[i] = new Readings(d, f, i % 5 == 0 ? d : walk, random.nextInt() >> random.nextInt(32));
+        }
+
+        Readings[] res = (Readings[]) EfficientStorage.deserialize(Readings[].class, EfficientStorage.serialize(arr));
+        for (int i = 0; i < arr.length; i++) {
+            Assert.assertEquals(Double.doubleToRawLongBits(arr[i].d), Double.doubleToRawLongBits(res[i].d));
+            Assert.assertEquals(Float.floatToRawIntBits(arr[i].f), Float.floatToRawIntBits(res[i].f));
+            Assert.assertEquals(Double.doubleToRawLongBits(arr[i].boxed), Double.doubleToRawLongBits(res[i].boxed));
+            Assert.assertEquals(arr[i].i, res[i].i);
+        }
+
+        // A repeating value costs a bit per element per column
+        Readings[] flat = new Readings[8000];
+        for (int i = 0; i < flat.length; i++) {
+            flat[i] = new Readings(21.5, 3.25f, 0.1, 42);
+        }
+        Assert.assertTrue(EfficientStorage.serialize(flat).length < 4 + 24 + 4 * 8000 / 8 + 4);
+    }
+
+    @Test
+    public void testBigDecimalDeltaOverflow() {
+        StoreByDeltaTypes[] arr = {
+                new StoreByDeltaTypes(1, 1, new BigDecimal("1e-30")),
+                new StoreByDeltaTypes(1, 1, new BigDecimal("1000"))
+        };
+        try {
+            EfficientStorage.serialize(arr);
+            Assert.fail();
+        } catch (EfficientException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testPatchedDeltas() throws EfficientException {
+        // Small jittery steps with a rare gap: the gap widens every offset in the plain column
+        Random random = new Random(11);
+        Spiky[] arr = new Spiky[5000];
+        long time = 0;
+        for (int i = 0; i < arr.length; i++) {
+            time += i % 1000 == 999 ? 1L << 40 : 10 + random.nextInt(16);
+            arr[i] = new Spiky(time, time);
+        }
+        byte[] data = EfficientStorage.serialize(arr);
+        Spiky[] res = (Spiky[]) EfficientStorage.deserialize(Spiky[].class, data);
+        for (int i = 0; i < arr.length; i++) {
+            Assert.assertEquals(arr[i].time, res[i].time);
+            Assert.assertEquals(arr[i].plain, res[i].plain);
+        }
+
+        // Without the plain column the patched one is several times smaller
+        int plainBytes = 4 + (8 + 64 + 42 * 4999 + 7) / 8;
+        Assert.assertTrue(data.length - plainBytes < plainBytes / 4);
+
+        // Offsets of every size, including wrapping ones
+        long[] jumps = {0, 1, -1, 300, -70000, 1L << 50, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (int i = 0; i < arr.length; i++) {
+            time += random.nextInt(4) == 0 ? jumps[random.nextInt(jumps.length)] : random.nextInt(100);
+            arr[i] = new Spiky(time, -time);
+        }
+        res = (Spiky[]) EfficientStorage.deserialize(Spiky[].class, EfficientStorage.serialize(arr));
+        for (int i = 0; i < arr.length; i++) {
+            Assert.assertEquals(arr[i].time, res[i].time);
+        }
+    }
+
+    @Test
+    public void testBlockedDeltas() throws EfficientException {
+        Random random = new Random(13);
+        for (int len : new int[]{1, 63, 64, 65, 128, 129, 5000}) {
+            Blocked[] arr = new Blocked[len];
+            for (int i = 0; i < len; i++) {
+                arr[i] = new Blocked(1000L * i + random.nextInt(50), 100 + random.nextGaussian(),
+                        BigDecimal.valueOf(random.nextInt(100000), 2), random.nextInt(1 << random.nextInt(31)));
+            }
+
+            byte[] data = EfficientStorage.serialize(arr);
+            Blocked[] res = (Blocked[]) EfficientStorage.deserialize(Blocked[].class, data);
+            for (int i = 0; i < len; i++) {
+                Assert.assertEquals(arr[i].time, res[i].time);
+                Assert.assertEquals(Double.doubleToRawLongBits(arr[i].price), Double.doubleToRawLongBits(res[i].price));
+                Assert.assertEquals(0, arr[i].amount.compareTo(res[i].amount));
+                Assert.assertEquals(arr[i].count, res[i].count);
+            }
+        }
+    }
+
+    @Test
+    public void testDeltaBlocksDecodeIndependently() throws IOException {
+        EfficientDeltaValue edv = EfficientStorage.getDeltaValue(long.class);
+        long[] vals = new long[1000];
+        for (int i = 1; i < vals.length; i++) {
+            vals[i] = vals[i - 1] + (i * 37L) % 101 - 50;
+        }
+
+        for (DeltaEncoding encoding : DeltaEncoding.values()) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            BitWriter bw = new BitWriter(baos);
+            DeltaColumn.write(bw, edv, encoding, 128, new EfficientDeltaValue.Values(vals));
+            bw.finish();
+
+            // Jump over the directory and the first five blocks straight to the sixth
+            ByteBuffer buffer = ByteBuffer.wrap(baos.toByteArray());
+            int blocks = DeltaColumn.blockCount(vals.length, 128);
+            int start = 4 * blocks;
+            for (int b = 0; b < 5; b++) {
+                start += buffer.getInt(4 * b);
+            }
+            buffer.position(start);
+
+            long[] block = DeltaColumn.read(new BitReader(buffer), edv, encoding, 128).values;
+            Assert.assertArrayEquals(Arrays.copyOfRange(vals, 5 * 128, 6 * 128), block);
+        }
+    }
+
+    @Test
+    public void testParallelDeltaColumns() throws EfficientException {
+        Random random = new Random(17);
+        int len = 20000;
+        Blocked[] blocked = new Blocked[len];
+        Samples[] samples = new Samples[len];
+        Spiky[] spiky = new Spiky[len];
+        Readings[] readings = new Readings[len];
+        for (int i = 0; i < len; i++) {
+            blocked[i] = new Blocked(1000L * i + random.nextInt(50), 100 + random.nextGaussian(),
+                    BigDecimal.valueOf(random.nextInt(100000), 2), random.nextInt(1 << random.nextInt(31)));
+            samples[i] = new Samples(1000L * i + (random.nextInt(10) == 0 ? random.nextInt(5000) : 0), random.nextInt());
+            spiky[i] = new Spiky(i * 3L + (random.nextInt(100) == 0 ? random.nextLong() : 0), random.nextLong());
+            readings[i] = new Readings(random.nextDouble(), random.nextFloat(), random.nextGaussian(), random.nextInt(1000));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int chunkSize : new int[]{7, 1000, 1 << 16}) {
+                EfficientOptions options = new EfficientOptions().executor(executor).parallelThreshold(0).parallelChunkSize(chunkSize);
+                for (Object[] arr : new Object[][]{blocked, samples, spiky, readings}) {
+                    // The bytes match the sequential encoding and decode back to the same values either way
+                    byte[] data = EfficientStorage.serialize(arr);
+                    Assert.assertArrayEquals(data, EfficientStorage.serialize(arr, options));
+                    Object res = EfficientStorage.deserialize(arr.getClass(), data, options);
+                    Assert.assertArrayEquals(data, EfficientStorage.serialize(res));
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testColumnar() throws EfficientException {
+        Random random = new Random(19);
+        String[] syms = {"AAPL", "MSFT", "\u00e9t\u00e9"};
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            EfficientOptions[] options = {
+                    new EfficientOptions(),
+                    new EfficientOptions().varintLengths(true).stringDictionary(true),
+                    new EfficientOptions().executor(executor).parallelThreshold(0).parallelChunkSize(100)
+            };
+            for (int len : new int[]{0, 1, 65, 1000}) {
+                Trade[] arr = new Trade[len];
+                for (int i = 0; i < len; i++) {
+                    Person trader = new Person("p" + random.nextInt(5), random.nextInt(90), (byte) i, (short) -i, random.nextLong(), (char) ('a' + i % 26), random.nextFloat(), random.nextDouble(), random.nextBoolean());
+                    arr[i] = new Trade(syms[random.nextInt(syms.length)], random.nextInt(), random.nextBoolean(), i * 7L - 300,
+                            new int[random.nextInt(3)], trader, new Samples(1000L * i, random.nextInt(100)), 5000L + 10 * i + random.nextInt(3));
+                }
+
+                for (EfficientOptions opts : options) {
+                    byte[] data = EfficientStorage.serialize(arr, opts);
+                    Trade[][] results = {
+                            (Trade[]) EfficientStorage.deserialize(Trade[].class, data, opts),
+                            (Trade[]) EfficientStorage.deserialize(Trade[].class, new ByteArrayInputStream(data), opts)
+                    };
+                    for (Trade[] res : results) {
+                        Assert.assertEquals(len, res.length);
+                        for (int i = 0; i < len; i++) {
+                            Assert.assertEquals(arr[i].sym, res[i].sym);
+                            Assert.assertEquals(arr[i].qty, res[i].qty);
+                            Assert.assertEquals(arr[i].buy, res[i].buy);
+                            Assert.assertEquals(arr[i].id, res[i].id);
+                            Assert.assertArrayEquals(arr[i].levels, res[i].levels);
+                            Assert.assertEquals(arr[i].trader.getName(), res[i].trader.getName());
+                            Assert.assertEquals(arr[i].trader.getAge(), res[i].trader.getAge());
+                            Assert.assertEquals(arr[i].trader.l, res[i].trader.l);
+                            Assert.assertEquals(arr[i].trader.d, res[i].trader.d, 0);
+                            Assert.assertEquals(arr[i].trader.bool, res[i].trader.bool);
+                            Assert.assertEquals(arr[i].sample.time, res[i].sample.time);
+                            Assert.assertEquals(arr[i].sample.value, res[i].sample.value);
+                            Assert.assertEquals(arr[i].time, res[i].time);
+                        }
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // A single object keeps the row layout
+        Trade trade = new Trade("x", 1, true, 2, new int[0], new Person("p", 1, (byte) 1, (short) 1, 1, 'c', 1, 1, true), new Samples(1, 1), 3);
+        Assert.assertEquals("x", ((Trade) EfficientStorage.deserialize(Trade.class, EfficientStorage.serialize(trade))).sym);
+
+        try {
+            EfficientStorage.serialize(new Trade[]{trade, null});
+            Assert.fail();
+        } catch (EfficientException e) {
+            Assert.assertEquals("Tried to serialize null object", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testProjection() throws EfficientException {
+        Trade[] arr = new Trade[300];
+        for (int i = 0; i < arr.length; i++) {
+            Person trader = new Person("p" + i, i, (byte) i, (short) i, i, 'c', i, i, true);
+            arr[i] = new Trade("s" + i, i * 2, true, i, new int[]{i}, trader, new Samples(i * 10L, i), 1000L + i);
+        }
+
+        EfficientOptions options = new EfficientOptions().stringDictionary(true);
+        byte[] data = EfficientStorage.serialize(arr, options);
+        Projection projection = Projection.of("qty", "time", "trader.name", "sample.time");
+        Trade[][] results = {
+                (Trade[]) EfficientStorage.deserialize(Trade[].class, data, projection, options),
+                (Trade[]) EfficientStorage.deserialize(Trade[].class, new ByteArrayInputStream(data), projection, options)
+        };
+        for (Trade[] res : results) {
+            for (int i = 0; i < arr.length; i++) {
+                Assert.assertEquals(i * 2, res[i].qty);
+                Assert.assertEquals(1000L + i, res[i].time);
+                Assert.assertEquals("p" + i, res[i].trader.getName());
+                Assert.assertEquals(i * 10L, res[i].sample.time);
+
+                // Everything else keeps its default
+                Assert.assertNull(res[i].sym);
+                Assert.assertFalse(res[i].buy);
+                Assert.assertNull(res[i].levels);
+                Assert.assertEquals(0, res[i].trader.getAge());
+                Assert.assertEquals(0, res[i].sample.value);
+            }
+        }
+
+        for (Projection bad : new Projection[]{Projection.of("nope"), Projection.of("qty.x"), Projection.of("trader.nope")}) {
+            try {
+                EfficientStorage.deserialize(Trade[].class, data, bad, options);
+                Assert.fail();
+            } catch (EfficientException e) {
+                // Expected
+            }
+        }
+
+        try {
+            EfficientStorage.deserialize(Samples[].class, EfficientStorage.serialize(new Samples[]{new Samples(1, 2)}), Projection.of("time"));
+            Assert.fail();
+        } catch (EfficientException e) {
+            Assert.assertEquals("Projections need an array of a columnar class, got [Lcom.rcpooley.effstorage.test.structs.Samples;", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testArrayView() throws EfficientException {
+        Random random = new Random(23);
+        Blocked[] blocked = new Blocked[5000];
+        Named[] named = new Named[5000];
+        for (int i = 0; i < blocked.length; i++) {
+            blocked[i] = new Blocked(1000L * i + random.nextInt(50), 100 + random.nextGaussian(),
+                    BigDecimal.valueOf(random.nextInt(100000), 2), random.nextInt(1 << random.nextInt(31)));
+            named[i] = new Named("n" + random.nextInt(20), i * 0.5);
+        }
+
+        EfficientOptions options = new EfficientOptions().elementIndex(64).stringDictionary(true);
+        byte[] blockedData = EfficientStorage.serialize(blocked, options);
+        byte[] namedData = EfficientStorage.serialize(named, options);
+
+        // The index does not change what deserialize reads back
+        Assert.assertArrayEquals(EfficientStorage.serialize(blocked), EfficientStorage.serialize(EfficientStorage.deserialize(Blocked[].class, blockedData, options)));
+        Assert.assertArrayEquals(EfficientStorage.serialize(named), EfficientStorage.serialize(EfficientStorage.deserialize(Named[].class, namedData, options)));
+
+        EfficientArrayView<Blocked> blockedView = new EfficientArrayView<>(Blocked.class, blockedData, options);
+        EfficientArrayView<Named> namedView = new EfficientArrayView<>(Named.class, namedData, options);
+        Assert.assertEquals(5000, blockedView.length());
+        for (int i : new int[]{0, 63, 64, 127, 128, 999, 1000, 4999}) {
+            Blocked b = blockedView.get(i);
+            Assert.assertEquals(blocked[i].time, b.time);
+            Assert.assertEquals(blocked[i].price, b.price, 0);
+            Assert.assertEquals(0, blocked[i].amount.compareTo(b.amount));
+            Assert.assertEquals(blocked[i].count, b.count);
+
+            Named n = namedView.get(i);
+            Assert.assertEquals(named[i].s, n.s);
+            Assert.assertEquals(named[i].d, n.d, 0);
+        }
+
+        Blocked[] range = blockedView.get(100, 1100);
+        Assert.assertEquals(1000, range.length);
+        for (int i = 0; i < range.length; i++) {
+            Assert.assertEquals(blocked[100 + i].time, range[i].time);
+            Assert.assertEquals(blocked[100 + i].count, range[i].count);
+        }
+        Assert.assertEquals(0, blockedView.get(5000, 5000).length);
+
+        try {
+            new EfficientArrayView<>(Blocked.class, blockedData, new EfficientOptions());
+            Assert.fail();
+        } catch (EfficientException e) {
+            // Expected
+        }
+
+        // Compressed payloads are read a few blocks at a time
+        AtomicInteger decompressed = new AtomicInteger();
+        Codec counting = new Codec() {
+            @Override
+            public int id() {
+                return 200;
+            }
+
+            @Override
+            public byte[] compress(byte[] src, int off, int len) throws IOException {
+                return Codec.DEFLATE.compress(src, off, len);
+            }
+
+            @Override
+            public void decompress(byte[] src, int off, int len, byte[] dst, int dstOff, int dstLen) throws IOException {
+                decompressed.incrementAndGet();
+                Codec.DEFLATE.decompress(src, off, len, dst, dstOff, dstLen);
+            }
+        };
+        EfficientOptions compressed = new EfficientOptions().elementIndex(64).stringDictionary(true).codec(counting).compressionBlockSize(512);
+        byte[] compressedData = EfficientStorage.serialize(blocked, compressed);
+        EfficientArrayView<Blocked> compressedView = new EfficientArrayView<>(Blocked.class, compressedData, compressed);
+        int blockCount = CompressedBlocks.open(ByteBuffer.wrap(compressedData), compressed).blockCount();
+        decompressed.set(0);
+        for (int i : new int[]{0, 999, 4999}) {
+            Blocked b = compressedView.get(i);
+            Assert.assertEquals(blocked[i].time, b.time);
+            Assert.assertEquals(blocked[i].price, b.price, 0);
+            Assert.assertEquals(blocked[i].count, b.count);
+        }
+        Assert.assertTrue(decompressed.get() < blockCount);
+
+        // Unblocked storeByDelta columns can't be read in part
+        StoreByDelta[] unblocked = {new StoreByDelta("a", 1), new StoreByDelta("b", 2)};
+        try {
+            new EfficientArrayView<>(StoreByDelta.class, EfficientStorage.serialize(unblocked, options), options);
+            Assert.fail();
+        } catch (EfficientException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testEfficientFile() throws EfficientException, IOException {
+        Path path = Files.createTempFile("efficient", ".eff");
+        Files.delete(path);
+        EfficientOptions options = new EfficientOptions().elementIndex(16);
+        Samples[] first = new Samples[100];
+        Blocked[] second = new Blocked[50];
+        for (int i = 0; i < first.length; i++) first[i] = new Samples(i * 10L, i);
+        for (int i = 0; i < second.length; i++) second[i] = new Blocked(i * 20L, i, BigDecimal.ONE, -i);
+
+        try (EfficientFile.Writer writer = EfficientFile.append(path, options)) {
+            Assert.assertEquals(0, writer.append(first));
+            writer.commit();
+
+            // Only one writer at a time
+            try {
+                EfficientFile.append(path, options);
+                Assert.fail();
+            } catch (EfficientException e) {
+                // Expected
+            }
+
+            // Readers see committed blocks only
+            Assert.assertEquals(1, writer.append(new Person("bob", 30, (byte) 1, (short) 2, 3, 'c', 1.5f, 2.5, true)));
+            try (EfficientFile file = EfficientFile.open(path, options)) {
+                Assert.assertEquals(1, file.blockCount());
+            }
+        }
+
+        long size = Files.size(path);
+        try (EfficientFile.Writer writer = EfficientFile.append(path, options)) {
+            Assert.assertEquals(2, writer.blockCount());
+            Assert.assertEquals(2, writer.append(second));
+        }
+        Assert.assertTrue(Files.size(path) > size);
+
+        try (EfficientFile file = EfficientFile.open(path, options)) {
+            Assert.assertEquals(3, file.blockCount());
+            Assert.assertEquals(151, file.getTotalCount());
+            Assert.assertEquals(Person.class.getName(), file.getTypeName(1));
+            Assert.assertEquals(1, file.getCount(1));
+            Assert.assertEquals(50, file.getCount(2));
+
+            Samples[] res = (Samples[]) file.read(0);
+            Assert.assertEquals(99, res[99].value);
+            Assert.assertEquals(990L, res[99].time);
+            Assert.assertEquals("bob", ((Person) file.read(1, Person.class)).getName());
+            Assert.assertEquals(-49, file.view(2, Blocked.class).get(49).count);
+            Assert.assertEquals(980L, file.view(2, Blocked.class).get(49).time);
+        }
+
+        try {
+            // A torn write of the newest header slot falls back on the commit before it
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}), 8 + 28 + 4);
+            }
+            try (EfficientFile file = EfficientFile.open(path, options)) {
+                Assert.assertEquals(2, file.blockCount());
+                Assert.assertEquals("bob", ((Person) file.read(1)).getName());
+            }
+
+            // Each commit lists only the blocks it added, so commits cost the same however many came before
+            long[] sizes = new long[40];
+            try (EfficientFile.Writer writer = EfficientFile.append(path, options)) {
+                for (int i = 0; i < sizes.length; i++) {
+                    writer.append(new Samples[]{new Samples(i, i)});
+                    writer.commit();
+                    sizes[i] = Files.size(path);
+                }
+            }
+            Assert.assertEquals(sizes[2] - sizes[1], sizes[39] - sizes[38]);
+            try (EfficientFile file = EfficientFile.open(path, options)) {
+                Assert.assertEquals(42, file.blockCount());
+                Assert.assertEquals(39, ((Samples[]) file.read(41))[0].value);
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testArrayWriter() throws EfficientException, IOException {
+        EfficientOptions options = new EfficientOptions().chunkSize(1000).stringDictionary(true);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (EfficientArrayWriter<StoreByDelta> writer = EfficientStorage.newArrayWriter(StoreByDelta.class, baos, options)) {
+            for (int i = 0; i < 2500; i++) {
+                writer.write(new StoreByDelta("s" + i % 7, i * 0.25));
+            }
+        }
+
+        // Chunks are plain array payloads, ending with an empty one
+        ByteBuffer buffer = ByteBuffer.wrap(baos.toByteArray());
+        int[] lengths = {1000, 1000, 500, 0};
+        int n = 0;
+        for (int length : lengths) {
+            StoreByDelta[] chunk = (StoreByDelta[]) EfficientStorage.deserialize(StoreByDelta[].class, buffer, options);
+            Assert.assertEquals(length, chunk.length);
+            for (StoreByDelta element : chunk) {
+                Assert.assertEquals("s" + n % 7, element.s);
+                Assert.assertEquals(n * 0.25, element.d, 0);
+                n++;
+            }
+        }
+        Assert.assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testIterate() throws EfficientException, IOException {
+        EfficientOptions options = new EfficientOptions().chunkSize(300).varintLengths(true);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (EfficientArrayWriter<Samples> writer = EfficientStorage.newArrayWriter(Samples.class, baos, options)) {
+            for (int i = 0; i < 1000; i++) {
+                writer.write(new Samples(i * 3L, i));
+            }
+        }
+        byte[] data = baos.toByteArray();
+
+        Iterator<Samples> it = EfficientStorage.iterate(Samples.class, new ByteArrayInputStream(data), options);
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(it.hasNext());
+            Samples s = it.next();
+            Assert.assertEquals(i * 3L, s.time);
+            Assert.assertEquals(i, s.value);
+        }
+        Assert.assertFalse(it.hasNext());
+
+        Assert.assertEquals(999L * 1000 / 2, EfficientStorage.stream(Samples.class, new ByteArrayInputStream(data), options).mapToLong(s -> s.value).sum());
+
+        // A plain serialized array reads as a single chunk
+        Samples[] arr = {new Samples(1, 2), new Samples(3, 4)};
+        Assert.assertEquals(2, EfficientStorage.stream(Samples.class, new ByteArrayInputStream(EfficientStorage.serialize(arr))).count());
+
+        try {
+            EfficientStorage.stream(Samples.class, new ByteArrayInputStream(Arrays.copyOf(data, data.length / 2)), options).count();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        // A close that fails can be retried
+        ByteArrayOutputStream flaky = new ByteArrayOutputStream() {
+            boolean failed;
+
+            @Override
+            public void flush() throws IOException {
+                if (!failed) {
+                    failed = true;
+                    throw new IOException("flush failed");
+                }
+            }
+        };
+        EfficientArrayWriter<Samples> writer = EfficientStorage.newArrayWriter(Samples.class, flaky, options);
+        writer.write(new Samples(1, 2));
+        try {
+            writer.close();
+            Assert.fail();
+        } catch (IOException e) {
+            // Expected
+        }
+        int written = flaky.size();
+        writer.close();
+        Assert.assertEquals(written, flaky.size());
+        Assert.assertEquals(1, EfficientStorage.stream(Samples.class, new ByteArrayInputStream(flaky.toByteArray()), options).count());
+
+        // A chunk that fails partway leaves the writer refusing everything after, as part of it may be in the stream
+        EfficientArrayWriter<Named> failing = EfficientStorage.newArrayWriter(Named.class, new ByteArrayOutputStream(), new EfficientOptions().chunkSize(2));
+        failing.write(new Named("a", 1));
+        try {
+            failing.write(new Named(null, 2));
+            Assert.fail();
+        } catch (EfficientException e) {
+            // Expected
+        }
+        try {
+            failing.write(new Named("c", 3));
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        try {
+            failing.flush();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        try {
+            failing.close();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testDeserializeInto() throws EfficientException {
+        Arr arr = new Arr(new String[]{"a", "b"}, new int[]{1, 2}, new byte[]{3}, new short[]{4}, new long[]{5}, new char[]{'c'}, new float[]{6}, new double[]{7}, new boolean[]{true});
+        Arr target = new Arr(new String[2], new int[2], new byte[1], new short[1], new long[1], new char[1], new float[1], new double[1], new boolean[3]);
+        int[] ints = target.i;
+        String[] strs = target.str;
+        Assert.assertSame(target, EfficientStorage.deserializeInto(target, EfficientStorage.serialize(arr)));
+        Assert.assertSame(ints, target.i);
+        Assert.assertSame(strs, target.str);
+        Assert.assertArrayEquals(new int[]{1, 2}, target.i);
+        Assert.assertArrayEquals(new String[]{"a", "b"}, target.str);
+        Assert.assertArrayEquals(new double[]{7}, target.d, 0);
+        // An array of another length is replaced
+        Assert.assertArrayEquals(new boolean[]{true}, target.bool);
+
+        Person[] ppl = {new Person("x", 1, (byte) 1, (short) 1, 1, 'a', 1, 1, true), new Person("y", 2, (byte) 2, (short) 2, 2, 'b', 2, 2, false)};
+        People people = new People(new Person[]{new Person("", 0, (byte) 0, (short) 0, 0, ' ', 0, 0, false), new Person("", 0, (byte) 0, (short) 0, 0, ' ', 0, 0, false)});
+        Person first = people.getPpl()[0];
+        EfficientStorage.deserializeInto(people, EfficientStorage.serialize(new People(ppl)));
+        Assert.assertSame(first, people.getPpl()[0]);
+        Assert.assertEquals("x", first.getName());
+        Assert.assertEquals("y", people.getPpl()[1].getName());
+        Assert.assertEquals(2, people.getPpl()[1].getAge());
+
+        Samples[] samples = new Samples[3];
+        for (int i = 0; i < samples.length; i++) samples[i] = new Samples(0, 0);
+        Samples[] reused = samples.clone();
+        Assert.assertSame(samples, EfficientStorage.deserializeInto(samples, EfficientStorage.serialize(new Samples[]{new Samples(10, 1), new Samples(20, 2), new Samples(35, 3)})));
+        Assert.assertArrayEquals(reused, samples);
+        Assert.assertEquals(35, samples[2].time);
+        Assert.assertEquals(2, samples[1].value);
+
+        Samples[] longer = EfficientStorage.deserializeInto(samples, EfficientStorage.serialize(new Samples[]{new Samples(1, 1), new Samples(2, 2), new Samples(3, 3), new Samples(4, 4)}));
+        Assert.assertNotSame(samples, longer);
+        Assert.assertEquals(4, longer[3].time);
+
+        // Columnar arrays fill in their elements and the objects they hold
+        Trade[] trades = {new Trade("a", 1, true, 2, new int[]{1}, new Person("p", 1, (byte) 1, (short) 1, 1, 'c', 1, 1, true), new Samples(1, 1), 3)};
+        Trade[] tradeTarget = {new Trade("", 0, false, 0, new int[0], new Person("", 0, (byte) 0, (short) 0, 0, ' ', 0, 0, false), new Samples(0, 0), 0)};
+        Person trader = tradeTarget[0].trader;
+        EfficientStorage.deserializeInto(tradeTarget, EfficientStorage.serialize(trades));
+        Assert.assertSame(trader, tradeTarget[0].trader);
+        Assert.assertEquals("p", trader.getName());
+        Assert.assertEquals("a", tradeTarget[0].sym);
+        Assert.assertEquals(3, tradeTarget[0].time);
+    }
+
+    @Test
+    public void testInstancePool() throws EfficientException {
+        int[] taken = new int[1];
+        Samples pooled = new Samples(0, 0);
+        EfficientOptions options = new EfficientOptions().instancePool(type -> {
+            taken[0]++;
+            return taken[0] == 1 ? pooled : null;
+        });
+        Samples[] res = (Samples[]) EfficientStorage.deserialize(Samples[].class, EfficientStorage.serialize(new Samples[]{new Samples(5, 6), new Samples(7, 8)}, options), options);
+        Assert.assertEquals(2, taken[0]);
+        Assert.assertSame(pooled, res[0]);
+        Assert.assertEquals(5, pooled.time);
+        Assert.assertEquals(8, res[1].value);
+
+        Person person = new Person("x", 1, (byte) 1, (short) 1, 1, 'a', 1, 1, true);
+        try {
+            EfficientStorage.deserialize(Person.class, EfficientStorage.serialize(person), new EfficientOptions().instancePool(type -> new Samples(0, 0)));
+            Assert.fail();
+        } catch (EfficientException e) {
+            // Expected
+        }
+    }
+
+    // testRegister registers globally, so drop what it added before other tests run
+    @After
+    public void unregister() {
+        EfficientStorage.unregister(Money.class);
+        EfficientStorage.unregisterDelta(short.class);
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        Wallet[] wallets = {new Wallet(new Money(150), (short) 3), new Wallet(new Money(-20), (short) 5)};
+        try {
+            EfficientStorage.serialize(wallets);
+            Assert.fail();
+        } catch (EfficientException e) {
+            // Expected: neither Money nor short has been registered yet
+        }
+
+        EfficientStorage.register(Money.class, new EfficientSerializer<Money>() {
+            @Override
+            public void serialize(Money obj, DataOutputStream dos) throws IOException {
+                dos.writeLong(obj.cents);
+            }
+
+            @Override
+            public Money deserialize(DataInputStream dis) throws IOException {
+                return new Money(dis.readLong());
+            }
+        });
+        EfficientDeltaValue shortDelta = new EfficientDeltaValue() {
+            @Override
+            public int getNumInitialBits() {
+                return 16;
+            }
+
+            @Override
+            public EfficientDeltaValue.Values getValues(Object[] values) {
+                long[] vals = new long[values.length];
+                for (int i = 0; i < vals.length; i++) vals[i] = (short) values[i];
+                return new EfficientDeltaValue.Values(vals);
+            }
+
+            @Override
+            public Object[] convertValues(EfficientDeltaValue.Values v) {
+                Object[] vals = new Short[v.values.length];
+                for (int i = 0; i < vals.length; i++) vals[i] = (short) v.values[i];
+                return vals;
+            }
+        };
+        EfficientStorage.registerDelta(short.class, shortDelta);
+
+        // Plans made before registering are dropped
+        Wallet[] res = (Wallet[]) EfficientStorage.deserialize(Wallet[].class, EfficientStorage.serialize(wallets));
+        Assert.assertEquals(-20, res[1].balance.cents);
+        Assert.assertEquals(5, res[1].count);
+
+        try {
+            EfficientStorage.register(String.class, EfficientStorage.getSerializer(String.class));
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        // Registering while other threads serialize
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                results.add(pool.submit(() -> EfficientStorage.serialize(wallets)));
+                if (i % 20 == 0) EfficientStorage.registerDelta(short.class, shortDelta);
+            }
+            byte[] expected = EfficientStorage.serialize(wallets);
+            for (Future<byte[]> result : results) {
+                Assert.assertArrayEquals(expected, result.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        // Unregistering drops the plans that used them
+        EfficientStorage.unregister(Money.class);
+        try {
+            EfficientStorage.serialize(wallets);
+            Assert.fail();
+        } catch (EfficientException e) {
+            // Expected
+        }
+        EfficientStorage.unregister(String.class);
+        Assert.assertArrayEquals(new byte[]{0, 0, 0, 1, 'a'}, EfficientStorage.serialize("a"));
+    }
+
+    @Test
+    public void testCompression() throws EfficientException, IOException {
+        Samples[] arr = new Samples[5000];
+        for (int i = 0; i < arr.length; i++) {
+            arr[i] = new Samples(1000L + i * 7, i % 13);
+        }
+        byte[] raw = EfficientStorage.serialize(arr);
+
+        EfficientOptions options = new EfficientOptions().codec(Codec.DEFLATE).compressionBlockSize(256);
+        byte[] data = EfficientStorage.serialize(arr, options);
+        Assert.assertTrue(data.length < raw.length);
+        Samples[] res = (Samples[]) EfficientStorage.deserialize(Samples[].class, data, options);
+        Assert.assertEquals(arr.length, res.length);
+        Assert.assertEquals(arr[4321].time, res[4321].time);
+        Assert.assertEquals(arr[4321].value, res[4321].value);
+
+        // Only the blocks a range falls in are decompressed
+        CompressedBlocks blocks = CompressedBlocks.open(ByteBuffer.wrap(data), options);
+        Assert.assertEquals(raw.length, blocks.length());
+        Assert.assertEquals((raw.length + 255) / 256, blocks.blockCount());
+        byte[] range = new byte[700];
+        blocks.read(300, range, 0, range.length);
+        Assert.assertArrayEquals(Arrays.copyOfRange(raw, 300, 1000), range);
+        Assert.assertArrayEquals(raw, blocks.decompress());
+
+        // Payloads are compressed as they are written and read back to just past their end marker
+        ByteBuffer two = ByteBuffer.allocate(data.length * 2);
+        EfficientStorage.serialize(arr, two, options);
+        EfficientStorage.serialize(new Samples[]{new Samples(1, 2)}, two, options);
+        two.flip();
+        Assert.assertEquals(arr.length, ((Samples[]) EfficientStorage.deserialize(Samples[].class, two, options)).length);
+        Assert.assertEquals(data.length, two.position());
+        Assert.assertEquals(2, ((Samples[]) EfficientStorage.deserialize(Samples[].class, two, options))[0].value);
+        Assert.assertFalse(two.hasRemaining());
+
+        // Blocks are compressed on their own, so the executor changes nothing in the bytes
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            EfficientOptions parallel = new EfficientOptions().codec(Codec.DEFLATE).compressionBlockSize(256).executor(executor);
+            Assert.assertArrayEquals(data, EfficientStorage.serialize(arr, parallel));
+            Assert.assertEquals(arr[17].time, ((Samples[]) EfficientStorage.deserialize(Samples[].class, data, parallel))[17].time);
+            Assert.assertEquals(arr[4999].time, ((Samples[]) EfficientStorage.deserialize(Samples[].class, new ByteArrayInputStream(data), parallel))[4999].time);
+        } finally {
+            executor.shutdown();
+        }
+
+        EfficientOptions none = new EfficientOptions().codec(Codec.NONE);
+        Person person = new Person("x", 1, (byte) 1, (short) 1, 1, 'a', 1, 1, true);
+        Assert.assertEquals("x", ((Person) EfficientStorage.deserialize(Person.class, EfficientStorage.serialize(person, none), none)).getName());
+
+        try {
+            EfficientStorage.deserialize(Samples[].class, data, none);
+            Assert.fail();
+        } catch (EfficientException e) {
+            // Expected
+        }
+
+        // Streams of chunks compress each chunk on its own
+        EfficientOptions chunked = new EfficientOptions().codec(Codec.deflate(9)).chunkSize(700);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (EfficientArrayWriter<Samples> writer = EfficientStorage.newArrayWriter(Samples.class, baos, chunked)) {
+            for (Samples sample : arr) {
+                writer.write(sample);
+            }
+        }
+        Assert.assertEquals(arr.length, EfficientStorage.stream(Samples.class, new ByteArrayInputStream(baos.toByteArray()), chunked).count());
+    }
+
+    @Test
+    public void testCustomCodec() throws EfficientException {
+        Codec inverted = new Codec() {
+            @Override
+            public int id() {
+                return 100;
+            }
+
+            @Override
+            public byte[] compress(byte[] src, int off, int len) {
+                byte[] out = new byte[len];
+                for (int i = 0; i < len; i++) out[i] = (byte) ~src[off + i];
+                return out;
+            }
+
+            @Override
+            public void decompress(byte[] src, int off, int len, byte[] dst, int dstOff, int dstLen) {
+                for (int i = 0; i < dstLen; i++) dst[dstOff + i] = (byte) ~src[off + i];
+            }
+        };
+        EfficientOptions options = new EfficientOptions().codec(inverted).compressionBlockSize(8);
+        People people = new People(new Person[]{new Person("abc", 4, (byte) 1, (short) 1, 1, 'a', 1, 1, true)});
+        People res = (People) EfficientStorage.deserialize(People.class, EfficientStorage.serialize(people, options), options);
+        Assert.assertEquals("abc", res.getPpl()[0].getName());
+
+        // Ids must fit the byte they are written as, and stay clear of the built in ones
+        for (int id : new int[]{1, 256, -1}) {
+            Codec bad = new Codec() {
+                @Override
+                public int id() {
+                    return id;
+                }
+
+                @Override
+                public byte[] compress(byte[] src, int off, int len) {
+                    return Arrays.copyOfRange(src, off, off + len);
+                }
+
+                @Override
+                public void decompress(byte[] src, int off, int len, byte[] dst, int dstOff, int dstLen) {
+                    System.arraycopy(src, off, dst, dstOff, dstLen);
+                }
+            };
+            try {
+                new EfficientOptions().codec(bad);
+                Assert.fail();
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
 }
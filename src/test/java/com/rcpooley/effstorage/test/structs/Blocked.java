@@ -0,0 +1,31 @@
+package com.rcpooley.effstorage.test.structs;
+
+import com.rcpooley.effstorage.core.DeltaEncoding;
+import com.rcpooley.effstorage.core.Efficient;
+
+import java.math.BigDecimal;
+
+@Efficient
+public class Blocked {
+
+    @Efficient(storeByDelta = true, blockSize = 128)
+    public long time;
+
+    @Efficient(storeByDelta = true, deltaEncoding = DeltaEncoding.XOR, blockSize = 100)
+    public double price;
+
+    @Efficient(storeByDelta = true, deltaEncoding = DeltaEncoding.DELTA_OF_DELTA, blockSize = 64)
+    public BigDecimal amount;
+
+    @Efficient(storeByDelta = true, deltaEncoding = DeltaEncoding.PATCHED, blockSize = 1000)
+    public int count;
+
+    private Blocked() {}
+
+    public Blocked(long time, double price, BigDecimal amount, int count) {
+        this.time = time;
+        this.price = price;
+        this.amount = amount;
+        this.count = count;
+    }
+}
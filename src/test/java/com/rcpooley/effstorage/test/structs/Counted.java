@@ -0,0 +1,14 @@
+package com.rcpooley.effstorage.test.structs;
+
+import com.rcpooley.effstorage.core.Efficient;
+
+// A static field is stored alongside the instance fields
+@Efficient
+public class Counted {
+
+    @Efficient
+    public static int counter;
+
+    @Efficient
+    public int value;
+}
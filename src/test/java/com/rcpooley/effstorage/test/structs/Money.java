@@ -0,0 +1,11 @@
+package com.rcpooley.effstorage.test.structs;
+
+// Not @Efficient: stored through a registered serializer
+public class Money {
+
+    public final long cents;
+
+    public Money(long cents) {
+        this.cents = cents;
+    }
+}
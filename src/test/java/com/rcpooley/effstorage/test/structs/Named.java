@@ -0,0 +1,20 @@
+package com.rcpooley.effstorage.test.structs;
+
+import com.rcpooley.effstorage.core.Efficient;
+
+@Efficient
+public class Named {
+
+    @Efficient
+    public String s;
+
+    @Efficient(storeByDelta = true, blockSize = 50)
+    public double d;
+
+    private Named() {}
+
+    public Named(String s, double d) {
+        this.s = s;
+        this.d = d;
+    }
+}
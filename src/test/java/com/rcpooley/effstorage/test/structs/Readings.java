@@ -0,0 +1,29 @@
+package com.rcpooley.effstorage.test.structs;
+
+import com.rcpooley.effstorage.core.DeltaEncoding;
+import com.rcpooley.effstorage.core.Efficient;
+
+@Efficient
+public class Readings {
+
+    @Efficient(storeByDelta = true, deltaEncoding = DeltaEncoding.XOR)
+    public double d;
+
+    @Efficient(storeByDelta = true, deltaEncoding = DeltaEncoding.XOR)
+    public float f;
+
+    @Efficient(storeByDelta = true, deltaEncoding = DeltaEncoding.XOR)
+    public Double boxed;
+
+    @Efficient(storeByDelta = true, deltaEncoding = DeltaEncoding.XOR)
+    public int i;
+
+    private Readings() {}
+
+    public Readings(double d, float f, Double boxed, int i) {
+        this.d = d;
+        this.f = f;
+        this.boxed = boxed;
+        this.i = i;
+    }
+}
@@ -0,0 +1,21 @@
+package com.rcpooley.effstorage.test.structs;
+
+import com.rcpooley.effstorage.core.DeltaEncoding;
+import com.rcpooley.effstorage.core.Efficient;
+
+@Efficient
+public class Samples {
+
+    @Efficient(storeByDelta = true, deltaEncoding = DeltaEncoding.DELTA_OF_DELTA)
+    public long time;
+
+    @Efficient(storeByDelta = true, deltaEncoding = DeltaEncoding.DELTA_OF_DELTA)
+    public int value;
+
+    private Samples() {}
+
+    public Samples(long time, int value) {
+        this.time = time;
+        this.value = value;
+    }
+}
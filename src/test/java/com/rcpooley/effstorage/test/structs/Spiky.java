@@ -0,0 +1,21 @@
+package com.rcpooley.effstorage.test.structs;
+
+import com.rcpooley.effstorage.core.DeltaEncoding;
+import com.rcpooley.effstorage.core.Efficient;
+
+@Efficient
+public class Spiky {
+
+    @Efficient(storeByDelta = true, deltaEncoding = DeltaEncoding.PATCHED)
+    public long time;
+
+    @Efficient(storeByDelta = true)
+    public long plain;
+
+    private Spiky() {}
+
+    public Spiky(long time, long plain) {
+        this.time = time;
+        this.plain = plain;
+    }
+}
@@ -0,0 +1,5 @@
+package com.rcpooley.effstorage.test.structs;
+
+// Stands in for a generated serializer that no longer matches: it doesn't implement EfficientSerializer
+public class Stale$$EfficientSerializer {
+}
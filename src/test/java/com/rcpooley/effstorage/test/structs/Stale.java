@@ -0,0 +1,11 @@
+package com.rcpooley.effstorage.test.structs;
+
+import com.rcpooley.effstorage.core.Efficient;
+
+// Its generated serializer is left over from something else and can't be used
+@Efficient
+public class Stale {
+
+    @Efficient
+    public int value;
+}
@@ -0,0 +1,45 @@
+package com.rcpooley.effstorage.test.structs;
+
+import com.rcpooley.effstorage.core.DeltaEncoding;
+import com.rcpooley.effstorage.core.Efficient;
+
+@Efficient(columnar = true)
+public class Trade {
+
+    @Efficient
+    public String sym;
+
+    @Efficient
+    public int qty;
+
+    @Efficient
+    public boolean buy;
+
+    @Efficient(varint = true)
+    public long id;
+
+    @Efficient
+    public int[] levels;
+
+    @Efficient
+    public Person trader;
+
+    @Efficient
+    public Samples sample;
+
+    @Efficient(storeByDelta = true, deltaEncoding = DeltaEncoding.DELTA_OF_DELTA, blockSize = 64)
+    public long time;
+
+    private Trade() {}
+
+    public Trade(String sym, int qty, boolean buy, long id, int[] levels, Person trader, Samples sample, long time) {
+        this.sym = sym;
+        this.qty = qty;
+        this.buy = buy;
+        this.id = id;
+        this.levels = levels;
+        this.trader = trader;
+        this.sample = sample;
+        this.time = time;
+    }
+}
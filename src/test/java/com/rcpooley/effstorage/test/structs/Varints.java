@@ -0,0 +1,35 @@
+package com.rcpooley.effstorage.test.structs;
+
+import com.rcpooley.effstorage.core.Efficient;
+
+@Efficient
+public class Varints {
+    @Efficient(varint = true)
+    public short s;
+
+    @Efficient(varint = true)
+    public char c;
+
+    @Efficient(varint = true)
+    public int i;
+
+    @Efficient(varint = true)
+    public long l;
+
+    @Efficient(varint = true)
+    public Integer boxed;
+
+    @Efficient
+    public int fixed;
+
+    private Varints() {}
+
+    public Varints(short s, char c, int i, long l, Integer boxed, int fixed) {
+        this.s = s;
+        this.c = c;
+        this.i = i;
+        this.l = l;
+        this.boxed = boxed;
+        this.fixed = fixed;
+    }
+}
@@ -0,0 +1,20 @@
+package com.rcpooley.effstorage.test.structs;
+
+import com.rcpooley.effstorage.core.Efficient;
+
+@Efficient
+public class Wallet {
+
+    @Efficient
+    public Money balance;
+
+    @Efficient(storeByDelta = true)
+    public short count;
+
+    private Wallet() {}
+
+    public Wallet(Money balance, short count) {
+        this.balance = balance;
+        this.count = count;
+    }
+}